@@ -0,0 +1,53 @@
+import json
+import struct
+import sys
+import numpy as np
+from sentence_transformers import SentenceTransformer
+
+# Encode the corpus and the queries once, for the in-process re-ranker (org.example.DenseReranker)
+# Usage: python export_embeddings.py [corpus] [queries] [output directory]
+
+# Model, must be the same for the documents and the queries
+model = SentenceTransformer("all-MiniLM-L6-v2")
+
+# Paths
+corpus_path = sys.argv[1] if len(sys.argv) > 1 else "data/corpus.jsonl.json"
+query_path = sys.argv[2] if len(sys.argv) > 2 else "data/queries.jsonl.json"
+output_dir = sys.argv[3] if len(sys.argv) > 3 else "data"
+
+# Same header as EmbeddingMatrix.java: magic "EMBD", version
+MAGIC = 0x454D4244
+VERSION = 1
+
+
+def write_matrix(path, ids, embeddings):
+    # Little-endian header, float32 row-major matrix, then the ids
+    with open(path, "wb") as f:
+        f.write(struct.pack("<iiii", MAGIC, VERSION, len(ids), embeddings.shape[1]))
+        f.write(embeddings.astype("<f4").tobytes())
+        for id in ids:
+            encoded = id.encode("utf-8")
+            f.write(struct.pack("<i", len(encoded)))
+            f.write(encoded)
+    print(f"{len(ids)} embeddings saved to: {path}")
+
+
+def read_jsonl(path, content):
+    ids = []
+    texts = []
+    with open(path, "r", encoding="utf-8") as f:
+        for line in f:
+            obj = json.loads(line)
+            ids.append(str(obj["_id"]))
+            texts.append(content(obj))
+    return ids, texts
+
+
+# Combine the title and the text field as a single string, like sen_trans.py
+doc_ids, doc_texts = read_jsonl(corpus_path, lambda obj: f"{obj.get('title', '')}. {obj.get('text', '')}")
+doc_embs = model.encode(doc_texts, batch_size=64, show_progress_bar=True, convert_to_numpy=True)
+write_matrix(f"{output_dir}/corpus.emb", doc_ids, np.asarray(doc_embs))
+
+query_ids, query_texts = read_jsonl(query_path, lambda obj: obj["text"])
+query_embs = model.encode(query_texts, batch_size=64, show_progress_bar=True, convert_to_numpy=True)
+write_matrix(f"{output_dir}/queries.emb", query_ids, np.asarray(query_embs))
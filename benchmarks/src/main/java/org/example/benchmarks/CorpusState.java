@@ -0,0 +1,62 @@
+package org.example.benchmarks;
+
+import org.example.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * An indexed synthetic corpus with its document vectors and a set of queries, built once per trial.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+
+    public static final String FIELD = "combined";
+
+    @Param({"1000", "5000", "20000"})
+    public int docs;
+
+    public Path directory;
+    public Path corpus;
+    public Vector vector;
+    public DocumentVectorStore store;
+    public InvertedIndex invertedIndex;
+    public Map<Integer, Map<String, Double>> documentVector;
+    public List<Querry> queries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("a1-bench-");
+        corpus = directory.resolve("corpus.jsonl.json");
+        SyntheticCorpus generator = new SyntheticCorpus(20000, 42);
+        generator.writeCorpus(corpus, docs, 7);
+        queries = generator.queries(300, 11);
+
+        Path index = directory.resolve("index");
+        new Indexer(corpus, index).index();
+        vector = new Vector(Indexer.createAnalyzer(), index, corpus, directory.resolve("results.csv"));
+        store = vector.buildDocumentStore(FIELD);
+        invertedIndex = InvertedIndex.build(store);
+        documentVector = vector.buildDocumentVector(FIELD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        vector.closeAll();
+        deleteRecursively(directory);
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
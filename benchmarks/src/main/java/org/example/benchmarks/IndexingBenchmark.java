@@ -0,0 +1,55 @@
+package org.example.benchmarks;
+
+import org.example.Indexer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexer.index on generated corpora, one fresh index per invocation.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexingBenchmark {
+
+    @Param({"1000", "5000", "20000"})
+    public int docs;
+
+    private Path directory;
+    private Path corpus;
+    private Path index;
+
+    @Setup(Level.Trial)
+    public void writeCorpus() throws IOException {
+        directory = Files.createTempDirectory("a1-bench-index-");
+        corpus = directory.resolve("corpus.jsonl.json");
+        new SyntheticCorpus(20000, 42).writeCorpus(corpus, docs, 7);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshIndex() throws IOException {
+        index = Files.createTempDirectory(directory, "index-");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        CorpusState.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public long index(){
+        return new Indexer(corpus, index).index();
+    }
+
+    @Benchmark
+    public long indexPipeline(){
+        return new Indexer(corpus, index).index(Runtime.getRuntime().availableProcessors(), 256);
+    }
+}
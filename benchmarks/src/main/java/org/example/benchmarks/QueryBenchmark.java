@@ -0,0 +1,149 @@
+package org.example.benchmarks;
+
+import org.example.QuantizedVectorStore;
+import org.example.QueryResult;
+import org.example.QueryVector;
+import org.example.Querry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The query path: query vector, scoring (exhaustive, term-at-a-time, micro-batched and quantized full scan)
+ * and a full batch.
+ * Single-query benchmarks cycle through the generated queries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+    @State(Scope.Thread)
+    public static class Queries {
+        List<Querry> queries;
+        List<Map<String, Double>> queryVectors;
+        // The same vectors resolved against the store's dictionary
+        List<QueryVector> sparseVectors;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(CorpusState state){
+            queries = state.queries;
+            queryVectors = new ArrayList<>();
+            sparseVectors = new ArrayList<>();
+            for (Querry query : queries) {
+                Map<String, Double> queryVector = state.vector.buildQueryVector(query.getText(), CorpusState.FIELD);
+                queryVectors.add(queryVector);
+                sparseVectors.add(QueryVector.of(queryVector, state.store.getDictionary()));
+            }
+        }
+
+        int nextIndex(){
+            int i = next;
+            next = (next + 1) % queries.size();
+            return i;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Quantized {
+        @Param({"INT8", "FLOAT16"})
+        QuantizedVectorStore.Encoding encoding;
+        QuantizedVectorStore store;
+
+        @Setup(Level.Trial)
+        public void setUp(CorpusState state){
+            store = QuantizedVectorStore.build(state.store, encoding);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Batch {
+        @Param({"1", "8", "32", "128"})
+        int size;
+    }
+
+    @Benchmark
+    public Map<String, Double> buildQueryVector(CorpusState state, Queries queries){
+        return state.vector.buildQueryVector(queries.queries.get(queries.nextIndex()).getText(), CorpusState.FIELD);
+    }
+
+    @Benchmark
+    public QueryVector analyzeQuery(CorpusState state, Queries queries){
+        return state.vector.buildQueryVector(queries.queries.get(queries.nextIndex()).getText(),
+                CorpusState.FIELD, state.store);
+    }
+
+    @Benchmark
+    public LinkedHashMap<Integer, Double> computeCosineSimilarity(CorpusState state, Queries queries){
+        return state.vector.computeCosineSimilarity(state.documentVector, queries.queryVectors.get(queries.nextIndex()));
+    }
+
+    @Benchmark
+    public LinkedHashMap<Integer, Double> computeCosineSimilarityTermAtATime(CorpusState state, Queries queries){
+        return state.vector.computeCosineSimilarity(state.store, queries.queryVectors.get(queries.nextIndex()), 100);
+    }
+
+    @Benchmark
+    public LinkedHashMap<Integer, Double> searchExhaustive(CorpusState state, Queries queries){
+        return state.invertedIndex.search(queries.sparseVectors.get(queries.nextIndex()), 100);
+    }
+
+    @Benchmark
+    public LinkedHashMap<Integer, Double> searchMaxScore(CorpusState state, Queries queries){
+        return state.invertedIndex.searchMaxScore(queries.sparseVectors.get(queries.nextIndex()), 100);
+    }
+
+    @Benchmark
+    public LinkedHashMap<Integer, Double> scanCosineSimilarity(CorpusState state, Queries queries){
+        return state.vector.scanCosineSimilarity(state.store, queries.sparseVectors.get(queries.nextIndex()), 100);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+    public LinkedHashMap<Integer, Double> scanQuantized(Quantized quantized, Queries queries){
+        return quantized.store.search(queries.sparseVectors.get(queries.nextIndex()), 100);
+    }
+
+    // Every query, scored in blocks of the batch size (1: one search per query)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void searchMicroBatched(CorpusState state, Queries queries, Batch batch, Blackhole blackhole){
+        List<QueryVector> vectors = queries.sparseVectors;
+        for (int i = 0; i < vectors.size(); i += batch.size) {
+            int end = Math.min(vectors.size(), i + batch.size);
+            if (batch.size == 1){
+                blackhole.consume(state.invertedIndex.search(vectors.get(i), 100));
+            }else {
+                blackhole.consume(state.invertedIndex.searchBatch(vectors.subList(i, end).toArray(new QueryVector[0]), 100));
+            }
+        }
+    }
+
+    @Benchmark
+    public double cosineSimilarityHelper(CorpusState state, Queries queries){
+        int i = queries.nextIndex();
+        Map<String, Double> dv = state.documentVector.get(i % state.documentVector.size());
+        return state.vector.cosineSimilarityHelper(dv, queries.queryVectors.get(i));
+    }
+
+    // Without the result cache: the queries cycle, so from the second pass on it would only measure cache hits
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(value = 1, jvmArgsAppend = "-Dvector.cache.size=0")
+    public void queryBatch(CorpusState state, Queries queries, Blackhole blackhole){
+        for (Querry query : queries.queries) {
+            QueryResult result = state.vector.searchQuery(query, state.store, 100, CorpusState.FIELD);
+            blackhole.consume(result);
+        }
+    }
+}
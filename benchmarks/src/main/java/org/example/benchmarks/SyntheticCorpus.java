@@ -0,0 +1,93 @@
+package org.example.benchmarks;
+
+import org.example.Querry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates corpora and queries in the corpus.jsonl.json / queries.jsonl.json format.
+ * Words are drawn from a Zipf distribution over a fixed vocabulary, so the postings have the
+ * usual mix of a few very long lists and a long tail of short ones.
+ */
+public final class SyntheticCorpus {
+
+    private final String[] vocabulary;
+
+    // Cumulative Zipf probabilities of the vocabulary
+    private final double[] cumulative;
+
+    public SyntheticCorpus(int vocabularySize, long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            // Letters only, and long enough that the English analyzer keeps them apart
+            StringBuilder word = new StringBuilder();
+            int length = 4 + random.nextInt(6);
+            for (int c = 0; c < length; c++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            vocabulary[i] = word.toString();
+        }
+        cumulative = new double[vocabularySize];
+        double sum = 0.0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < vocabularySize; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /**
+     * Write a corpus file
+     * @param path the file to write
+     * @param docs number of documents
+     * @param seed seed of the generated text
+     * @throws IOException if the file cannot be written
+     */
+    public void writeCorpus(Path path, int docs, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            for (int i = 0; i < docs; i++) {
+                writer.write("{\"_id\": \"" + (1000000 + i) + "\", \"title\": \"" + words(random, 4 + random.nextInt(8))
+                        + "\", \"text\": \"" + words(random, 40 + random.nextInt(160)) + "\", \"metadata\": {}}");
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Generate queries
+     * @param count number of queries
+     * @param seed seed of the generated text
+     * @return the queries, with ids 1..count
+     */
+    public List<Querry> queries(int count, long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Querry> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            queries.add(new Querry(i + 1, "\"" + words(random, 6 + random.nextInt(20)) + "\""));
+        }
+        return queries;
+    }
+
+    private String words(SplittableRandom random, int n){
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0){
+                text.append(' ');
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            text.append(vocabulary[Math.min(index < 0 ? -index - 1 : index, vocabulary.length - 1)]);
+        }
+        return text.toString();
+    }
+}
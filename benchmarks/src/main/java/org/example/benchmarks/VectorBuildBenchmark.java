@@ -0,0 +1,58 @@
+package org.example.benchmarks;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import org.example.DocumentVectorStore;
+import org.example.IdfTable;
+import org.example.ParallelStoreBuild;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the document vectors of a field from the term vectors, sequentially and per segment in parallel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VectorBuildBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Parallel {
+        @Param({"1", "2", "4", "8"})
+        int threads;
+        IndexReader reader;
+        IdfTable idfTable;
+
+        @Setup(Level.Trial)
+        public void setUp(CorpusState state) throws IOException {
+            reader = DirectoryReader.open(FSDirectory.open(state.directory.resolve("index")));
+            idfTable = state.vector.idfTable(CorpusState.FIELD);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public Map<Integer, Map<String, Double>> buildDocumentVector(CorpusState state){
+        return state.vector.buildDocumentVector(CorpusState.FIELD);
+    }
+
+    @Benchmark
+    public DocumentVectorStore buildDocumentStore(CorpusState state){
+        return state.vector.buildDocumentStore(CorpusState.FIELD);
+    }
+
+    @Benchmark
+    public DocumentVectorStore buildDocumentStoreParallel(Parallel parallel){
+        return ParallelStoreBuild.build(parallel.reader, CorpusState.FIELD, parallel.idfTable, parallel.threads);
+    }
+}
@@ -0,0 +1,151 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Catalog of the corpus file, built once with a single pass over the memory-mapped file.
+ * It only keeps where each document's line starts, the documents themselves are parsed
+ * lazily from the mapping when they are looked up. Safe to share between threads.
+ */
+public class CorpusCatalog implements AutoCloseable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final JsonlFile file;
+
+    // corpus-id -> row, and the line of each row
+    private final Map<String, Integer> rows;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private CorpusCatalog(JsonlFile file, Map<String, Integer> rows, long[] offsets, int[] lengths){
+        this.file = file;
+        this.rows = rows;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Catalog the default corpus file
+     * @return the catalog of src/main/java/corpus.jsonl.json
+     * @throws IOException if the corpus cannot be read
+     */
+    public static CorpusCatalog open() throws IOException {
+        return open(Paths.get("src/main/java/corpus.jsonl.json"));
+    }
+
+    /**
+     * Catalog a corpus file
+     * @param path the JSON lines corpus
+     * @return the catalog of the corpus
+     * @throws IOException if the corpus cannot be read
+     */
+    public static CorpusCatalog open(Path path) throws IOException {
+        JsonlFile file = JsonlFile.open(path);
+        Map<String, Integer> rows = new HashMap<>();
+        long[][] offsets = {new long[1024]};
+        int[][] lengths = {new int[1024]};
+        // Scratch copy of the current line, only the _id is parsed
+        byte[][] scratch = {new byte[4096]};
+        try {
+            file.forEachLine((offset, chunk, start, length) -> {
+                if (scratch[0].length < length){
+                    scratch[0] = new byte[Math.max(length, scratch[0].length * 2)];
+                }
+                chunk.get(start, scratch[0], 0, length);
+                String id = readId(scratch[0], length);
+                if (id == null){
+                    return;
+                }
+                int row = rows.size();
+                if (row == offsets[0].length){
+                    offsets[0] = Arrays.copyOf(offsets[0], row * 2);
+                    lengths[0] = Arrays.copyOf(lengths[0], row * 2);
+                }
+                offsets[0][row] = offset;
+                lengths[0][row] = length;
+                rows.put(id, row);
+            });
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new CorpusCatalog(file, rows,
+                Arrays.copyOf(offsets[0], rows.size()), Arrays.copyOf(lengths[0], rows.size()));
+    }
+
+    // Stream the line until the top-level _id field, the rest of the document is skipped
+    private static String readId(byte[] line, int length) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(line, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT){
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME){
+                String name = parser.currentName();
+                parser.nextToken();
+                if ("_id".equals(name)){
+                    return parser.getValueAsString();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param id the corpus-id
+     * @return true if the corpus holds the document
+     */
+    public boolean contains(String id){
+        return id != null && rows.containsKey(id);
+    }
+
+    /**
+     * Parse a document from the mapping
+     * @param id the corpus-id
+     * @return the document, null if the corpus does not hold it
+     * @throws IOException if the line is not valid JSON
+     */
+    public JsonNode document(String id) throws IOException {
+        Integer row = id == null ? null : rows.get(id);
+        if (row == null){
+            return null;
+        }
+        return OBJECT_MAPPER.readTree(file.line(offsets[row], lengths[row]));
+    }
+
+    /**
+     * @param id the corpus-id
+     * @return the text field of the document, null if the corpus does not hold it
+     */
+    public String text(String id){
+        try {
+            JsonNode document = document(id);
+            return document == null ? null : document.get("text").asText();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public int size(){
+        return rows.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,133 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Re-ranks the top results of a query by the cosine similarity of dense embeddings,
+ * in process and right after the tf-idf ranking (it replaces the a2/sen_trans.py pass over results.csv).
+ * The document embeddings and the query embeddings are precomputed by a2/export_embeddings.py
+ * and memory-mapped, see {@link EmbeddingMatrix}.
+ *
+ * The dot products use the Vector API when the JVM runs with --add-modules jdk.incubator.vector,
+ * and a scalar loop otherwise.
+ *
+ * Configure with -Dvector.rerank.documents=PATH and -Dvector.rerank.queries=PATH.
+ */
+public class DenseReranker implements AutoCloseable {
+
+    // Only touch the SIMD kernel (and the incubator classes) when the module is there
+    private static final boolean SIMD = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private final EmbeddingMatrix documents;
+
+    private final EmbeddingMatrix queries;
+
+    public DenseReranker(EmbeddingMatrix documents, EmbeddingMatrix queries){
+        if (documents.dimension() != queries.dimension()){
+            throw new IllegalArgumentException("Document and query embeddings differ in dimension: "
+                    + documents.dimension() + " vs " + queries.dimension());
+        }
+        this.documents = documents;
+        this.queries = queries;
+    }
+
+    /**
+     * @return the re-ranker configured by the vector.rerank.* system properties, null if they are not set
+     * @throws IOException if an embedding file cannot be mapped
+     */
+    public static DenseReranker fromSystemProperties() throws IOException {
+        String documentPath = System.getProperty("vector.rerank.documents");
+        String queryPath = System.getProperty("vector.rerank.queries");
+        if (documentPath == null || queryPath == null){
+            return null;
+        }
+        EmbeddingMatrix documents = EmbeddingMatrix.open(Paths.get(documentPath));
+        try {
+            return new DenseReranker(documents, EmbeddingMatrix.open(Paths.get(queryPath)));
+        } catch (IOException | RuntimeException e) {
+            documents.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Re-rank the results of a query. Safe to call from several threads.
+     * Documents without an embedding keep their relative order after the re-ranked ones, with a score of -1.
+     * @param result the tf-idf ranked results
+     * @return the re-ranked results, or the same results if the query has no embedding
+     */
+    public QueryResult rerank(QueryResult result){
+        int queryRow = queries.row(Integer.toString(result.getQuery().getId()));
+        if (queryRow < 0){
+            return result;
+        }
+        int dimension = documents.dimension();
+        float[] queryVector = queries.vector(queryRow, new float[dimension]);
+        float[] documentVector = new float[dimension];
+
+        int size = result.size();
+        double[] scores = new double[size];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            int row = documents.row(unquote(result.getCorpusId(i)));
+            scores[i] = row < 0 ? -1.0 : cosine(queryVector, documents.vector(row, documentVector), dimension);
+        }
+        // Stable, so equal scores keep the tf-idf order
+        Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+
+        int[] docIds = new int[size];
+        String[] corpusIds = new String[size];
+        double[] rerankedScores = new double[size];
+        for (int rank = 0; rank < size; rank++) {
+            int i = order[rank];
+            docIds[rank] = result.getDocId(i);
+            corpusIds[rank] = result.getCorpusId(i);
+            rerankedScores[rank] = scores[i];
+        }
+        return new QueryResult(result.getQuery(), docIds, corpusIds, rerankedScores, result.getTag(),
+                result.getReport() + "Re-ranked " + size + " results by dense similarity\n");
+    }
+
+    /**
+     * @param a first vector
+     * @param b second vector
+     * @param n dimension of the vectors
+     * @return the Cosine Similarity between the vectors, 0 if one of them is all zeros
+     */
+    static double cosine(float[] a, float[] b, int n){
+        return SIMD ? VectorKernel.cosine(a, b, n) : scalarCosine(a, b, n);
+    }
+
+    static double scalarCosine(float[] a, float[] b, int n){
+        double dot = 0.0;
+        double normA = 0.0;
+        double normB = 0.0;
+        for (int i = 0; i < n; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0.0 || normB == 0.0 ? 0.0 : dot / Math.sqrt(normA * normB);
+    }
+
+    // The corpus-ids are kept in their quoted JSON form
+    private static String unquote(String id){
+        if (id == null){
+            return "";
+        }
+        return id.length() >= 2 && id.charAt(0) == '"' && id.charAt(id.length() - 1) == '"'
+                ? id.substring(1, id.length() - 1) : id;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            documents.close();
+        } finally {
+            queries.close();
+        }
+    }
+}
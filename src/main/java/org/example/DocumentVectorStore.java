@@ -0,0 +1,383 @@
+package org.example;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.*;
+
+/**
+ * Packed store of the normalized document vectors of one field.
+ * The rows are laid out CSR-style: the terms of document d are the entries
+ * offsets[d] (inclusive) to offsets[d + 1] (exclusive) of termIds / weights,
+ * sorted by term id. Terms are mapped to ids by the field's {@link TermDictionary}.
+ */
+public class DocumentVectorStore {
+
+    private final String field;
+
+    private final TermDictionary dictionary;
+
+    // Start of each document's row, one extra entry marks the end of the last row
+    private final int[] offsets;
+
+    // Term id and weight of every posting, row by row; no weights once dropped for quantized scoring
+    private final int[] termIds;
+    private final float[] weights;
+
+    // Euclidean length of each document vector
+    private final float[] lengths;
+
+    DocumentVectorStore(String field, TermDictionary dictionary, int[] offsets,
+                        int[] termIds, float[] weights, float[] lengths){
+        this.field = field;
+        this.dictionary = dictionary;
+        this.offsets = offsets;
+        this.termIds = termIds;
+        this.weights = weights;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Pack a map based document vector
+     * @param documentVector the map of documents, where the key is each document id, and the value is
+     *                       the weight of each term
+     * @param field the field the vector was built on
+     * @return the packed document vector
+     */
+    public static DocumentVectorStore fromMap(Map<Integer, Map<String, Double>> documentVector, String field){
+        int maxDoc = 0;
+        for (Integer docId : documentVector.keySet()) {
+            maxDoc = Math.max(maxDoc, docId + 1);
+        }
+        Builder builder = new Builder(field, new TermDictionary(), maxDoc);
+        int[] ids = new int[16];
+        float[] rowWeights = new float[16];
+        for (int docId = 0; docId < maxDoc; docId++) {
+            Map<String, Double> dv = documentVector.getOrDefault(docId, Collections.emptyMap());
+            ids = ArrayUtil.grow(ids, dv.size());
+            rowWeights = ArrayUtil.grow(rowWeights, dv.size());
+            int n = 0;
+            for (Map.Entry<String, Double> entry : dv.entrySet()) {
+                ids[n] = builder.dictionary.add(entry.getKey());
+                rowWeights[n] = entry.getValue().floatValue();
+                n++;
+            }
+            builder.addRow(docId, ids, rowWeights, n);
+        }
+        return builder.build();
+    }
+
+    public String getField(){
+        return field;
+    }
+
+    public TermDictionary getDictionary(){
+        return dictionary;
+    }
+
+    /**
+     * @return upper bound (exclusive) of the document ids
+     */
+    public int maxDoc(){
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return total number of (document, term) entries
+     */
+    public int size(){
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * @param docId the document id
+     * @return position of the first entry of the document's row
+     */
+    public int start(int docId){
+        return offsets[docId];
+    }
+
+    /**
+     * @param docId the document id
+     * @return position after the last entry of the document's row
+     */
+    public int end(int docId){
+        return offsets[docId + 1];
+    }
+
+    public int termId(int position){
+        return termIds[position];
+    }
+
+    public float weight(int position){
+        return weights[position];
+    }
+
+    // Term id of every posting, for the scoring kernels; not to be modified
+    int[] termIds(){
+        return termIds;
+    }
+
+    // The same rows without their float weights, see QuantizedVectorStore
+    DocumentVectorStore withoutWeights(){
+        return new DocumentVectorStore(field, dictionary, offsets, termIds, null, lengths);
+    }
+
+    /**
+     * @return false if the float weights were dropped, the store is then scored through its {@link QuantizedVectorStore}
+     */
+    public boolean hasWeights(){
+        return weights != null;
+    }
+
+    // Fail early on the paths reading the float weights
+    void requireWeights(){
+        if (weights == null){
+            throw new IllegalStateException("The float weights of field " + field
+                    + " were dropped for quantized scoring, turn quantization off (-Dvector.quantized) to use them");
+        }
+    }
+
+    /**
+     * @param docId the document id
+     * @return the Euclidean length of the document vector
+     */
+    public float length(int docId){
+        return lengths[docId];
+    }
+
+    /**
+     * Look up the weight of a term in a document
+     * @param docId the document id
+     * @param termId the id of the term
+     * @return the weight, 0 if the document does not contain the term
+     */
+    public double weight(int docId, int termId){
+        if (termId < 0){
+            return 0.0;
+        }
+        int position = Arrays.binarySearch(termIds, offsets[docId], offsets[docId + 1], termId);
+        return position < 0 ? 0.0 : weights[position];
+    }
+
+    /**
+     * Look up the weight of a term in a document
+     * @param docId the document id
+     * @param term the term
+     * @return the weight, 0 if the document does not contain the term
+     */
+    public double weight(int docId, String term){
+        return weight(docId, dictionary.id(term));
+    }
+
+    /**
+     * Compute the Cosine Similarity between a stored document vector and the query vector
+     * @param docId the document id
+     * @param qv query vector
+     * @return the Cosine Similarity between the vectors
+     */
+    public double cosineSimilarity(int docId, Map<String, Double> qv){
+        double dotProduct = 0.0;
+        double euclideanLength_query = 0.0;
+        for (Map.Entry<String, Double> entry : qv.entrySet()) {
+            double query_tfidf = entry.getValue();
+            dotProduct += query_tfidf * weight(docId, entry.getKey());
+            euclideanLength_query += query_tfidf * query_tfidf;
+        }
+        // The document length is precomputed, no need to re-sum the row
+        return dotProduct / (Math.sqrt(euclideanLength_query) * lengths[docId]);
+    }
+
+    /**
+     * Compute the Cosine Similarity between a stored document vector and the query vector
+     * @param docId the document id
+     * @param qv query vector, resolved against the dictionary of this store
+     * @return the Cosine Similarity between the vectors
+     */
+    public double cosineSimilarity(int docId, QueryVector qv){
+        double dotProduct = 0.0;
+        for (int i = 0; i < qv.size(); i++) {
+            dotProduct += qv.weight(i) * weight(docId, qv.termId(i));
+        }
+        return dotProduct / (qv.length() * lengths[docId]);
+    }
+
+    /**
+     * @return approximate heap usage of the store in bytes
+     */
+    public long ramBytesUsed(){
+        return dictionary.ramBytesUsed()
+                + 4L * offsets.length + 4L * termIds.length + (weights == null ? 0L : 4L * weights.length)
+                + 4L * lengths.length;
+    }
+
+    /**
+     * Scratch row, reused while building the rows one by one
+     */
+    public static class Row {
+        private int[] ids = new int[64];
+        private float[] weights = new float[64];
+        private int size;
+
+        public void clear(){
+            size = 0;
+        }
+
+        public void add(int termId, float weight){
+            ids = ArrayUtil.grow(ids, size + 1);
+            weights = ArrayUtil.grow(weights, size + 1);
+            ids[size] = termId;
+            weights[size] = weight;
+            size++;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public float weight(int i){
+            return weights[i];
+        }
+
+        public void setWeight(int i, float weight){
+            weights[i] = weight;
+        }
+
+        /**
+         * Copy the row, sorted by term id, into a range of the arrays of a store
+         * @param termIds the term ids of the store
+         * @param weights the weights of the store
+         * @param start where the row starts in the arrays
+         * @return the Euclidean length of the row
+         */
+        float copyTo(int[] termIds, float[] weights, int start){
+            double length = 0.0;
+            for (int i = 0; i < size; i++) {
+                length += (double) this.weights[i] * this.weights[i];
+            }
+            System.arraycopy(ids, 0, termIds, start, size);
+            System.arraycopy(this.weights, 0, weights, start, size);
+            sortRow(termIds, weights, start, start + size);
+            return (float) Math.sqrt(length);
+        }
+    }
+
+    /**
+     * Builder appending the rows in ascending document id order
+     */
+    public static class Builder {
+
+        private final String field;
+        private final TermDictionary dictionary;
+        private final int[] offsets;
+        private final float[] lengths;
+        private int[] termIds = new int[1024];
+        private float[] weights = new float[1024];
+        private int size;
+        // Next document id expecting a row
+        private int nextDoc;
+
+        public Builder(String field, TermDictionary dictionary, int maxDoc){
+            this.field = field;
+            this.dictionary = dictionary;
+            this.offsets = new int[maxDoc + 1];
+            this.lengths = new float[maxDoc];
+        }
+
+        public TermDictionary getDictionary(){
+            return dictionary;
+        }
+
+        /**
+         * Append the row of a document, documents skipped in between get an empty row
+         * @param docId the document id, must be larger than the previous one
+         * @param ids term ids of the row
+         * @param rowWeights weights of the row
+         * @param n number of entries to read from the arrays
+         */
+        public void addRow(int docId, int[] ids, float[] rowWeights, int n){
+            double length = 0.0;
+            for (int i = 0; i < n; i++) {
+                length += (double) rowWeights[i] * rowWeights[i];
+            }
+            addRow(docId, ids, rowWeights, n, (float) Math.sqrt(length));
+        }
+
+        /**
+         * Append the row of a document with a given length instead of the length of its entries,
+         * e.g. a pruned row keeping the length of the full one
+         * @param docId the document id, must be larger than the previous one
+         * @param ids term ids of the row
+         * @param rowWeights weights of the row
+         * @param n number of entries to read from the arrays
+         * @param length the Euclidean length of the document vector
+         */
+        public void addRow(int docId, int[] ids, float[] rowWeights, int n, float length){
+            if (docId < nextDoc){
+                throw new IllegalArgumentException("Rows must be added in ascending doc id order");
+            }
+            // Empty rows for the documents skipped
+            while (nextDoc < docId){
+                offsets[++nextDoc] = size;
+            }
+            termIds = ArrayUtil.grow(termIds, size + n);
+            weights = ArrayUtil.grow(weights, size + n);
+            System.arraycopy(ids, 0, termIds, size, n);
+            System.arraycopy(rowWeights, 0, weights, size, n);
+            sortRow(termIds, weights, size, size + n);
+            lengths[docId] = length;
+            size += n;
+            offsets[++nextDoc] = size;
+        }
+
+        /**
+         * Append a scratch row
+         * @param docId the document id, must be larger than the previous one
+         * @param row the row to append
+         */
+        public void addRow(int docId, Row row){
+            addRow(docId, row.ids, row.weights, row.size);
+        }
+
+        /**
+         * Append a row of another store unchanged
+         * @param docId the document id in this store, must be larger than the previous one
+         * @param from the store to copy from, its dictionary must give the same ids as this builder's
+         *             (the same dictionary, or a {@link TermDictionary#copy()} of it)
+         * @param fromDoc the document id in the store to copy from
+         */
+        public void copyRow(int docId, DocumentVectorStore from, int fromDoc){
+            int start = from.start(fromDoc);
+            int n = from.end(fromDoc) - start;
+            addRow(docId, Arrays.copyOfRange(from.termIds, start, start + n),
+                    Arrays.copyOfRange(from.weights, start, start + n), n);
+        }
+
+        public DocumentVectorStore build(){
+            // Empty rows for the remaining documents
+            while (nextDoc < lengths.length){
+                offsets[++nextDoc] = size;
+            }
+            return new DocumentVectorStore(field, dictionary, offsets,
+                    Arrays.copyOf(termIds, size), Arrays.copyOf(weights, size), lengths);
+        }
+    }
+
+    // Insertion sort a row by term id, rows coming from term vectors are already sorted
+    private static void sortRow(int[] termIds, float[] weights, int from, int to){
+        for (int i = from + 1; i < to; i++) {
+            int id = termIds[i];
+            float weight = weights[i];
+            int j = i - 1;
+            if (termIds[j] <= id){
+                continue;
+            }
+            while (j >= from && termIds[j] > id){
+                termIds[j + 1] = termIds[j];
+                weights[j + 1] = weights[j];
+                j--;
+            }
+            termIds[j + 1] = id;
+            weights[j + 1] = weight;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only, memory-mapped matrix of dense embeddings, one row per corpus document (or query).
+ * The file is written once by a2/export_embeddings.py, so the embeddings never have to be
+ * recomputed by the search run.
+ *
+ * Layout (little-endian, as written by numpy):
+ *   magic, version, number of rows, dimension,
+ *   matrix[rows * dimension] (float32, row-major),
+ *   ids (length + UTF-8 bytes, one per row)
+ * A single mapping is limited to 2 GB, so the matrix is mapped in slices of whole rows, up to a gigabyte each.
+ */
+public class EmbeddingMatrix implements AutoCloseable {
+
+    private static final int MAGIC = 0x454D4244; // "EMBD"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 16;
+
+    // Largest slice of the matrix mapped at once
+    private static final int MAX_MAPPING = 1 << 30;
+
+    private final FileChannel channel;
+
+    // The matrix, rowsPerSlice rows per mapping
+    private final FloatBuffer[] slices;
+    private final int rowsPerSlice;
+
+    private final int dimension;
+
+    // Row of each id, and the id of each row
+    private final Map<String, Integer> rows;
+    private final String[] ids;
+
+    private EmbeddingMatrix(FileChannel channel, FloatBuffer[] slices, int rowsPerSlice, int dimension,
+                            Map<String, Integer> rows, String[] ids){
+        this.channel = channel;
+        this.slices = slices;
+        this.rowsPerSlice = rowsPerSlice;
+        this.dimension = dimension;
+        this.rows = rows;
+        this.ids = ids;
+    }
+
+    /**
+     * Map an embedding file
+     * @param path the file written by export_embeddings.py
+     * @return the mapped matrix
+     * @throws IOException if the file cannot be mapped or is not an embedding file
+     */
+    public static EmbeddingMatrix open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_BYTES){
+                throw new IOException("Not an embedding file: " + path);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION){
+                throw new IOException("Not an embedding file (or an unsupported version): " + path);
+            }
+            int count = header.getInt(8);
+            int dimension = header.getInt(12);
+            if (count < 0 || dimension <= 0 || 4L * dimension > MAX_MAPPING){
+                throw new IOException("Unsupported embedding file " + path + ": " + count + " rows of dimension "
+                        + dimension + " (at most " + MAX_MAPPING / 4 + " floats per row)");
+            }
+            long matrixBytes = 4L * count * dimension;
+            if (HEADER_BYTES + matrixBytes > channel.size()){
+                throw new IOException("Truncated embedding file: " + path);
+            }
+            // Whole rows per slice, so a row never spans two mappings
+            int rowsPerSlice = MAX_MAPPING / (4 * dimension);
+            FloatBuffer[] slices = new FloatBuffer[(int) ((count + (long) rowsPerSlice - 1) / rowsPerSlice)];
+            for (int slice = 0; slice < slices.length; slice++) {
+                long first = (long) slice * rowsPerSlice;
+                long bytes = 4L * dimension * Math.min(rowsPerSlice, count - first);
+                slices[slice] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + 4L * dimension * first, bytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            // The ids follow the matrix, streamed instead of mapped
+            Map<String, Integer> rows = HashMap.newHashMap(count);
+            String[] ids = new String[count];
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(HEADER_BYTES + matrixBytes)), 1 << 16));
+            try {
+                for (int row = 0; row < count; row++) {
+                    int length = Integer.reverseBytes(in.readInt());
+                    if (length < 0 || length > channel.size()){
+                        throw new IOException("Corrupt id of row " + row + " in embedding file: " + path);
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    ids[row] = new String(bytes, StandardCharsets.UTF_8);
+                    rows.put(ids[row], row);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Truncated embedding file: " + path, e);
+            }
+            return new EmbeddingMatrix(channel, slices, rowsPerSlice, dimension, rows, ids);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int dimension(){
+        return dimension;
+    }
+
+    public int size(){
+        return ids.length;
+    }
+
+    /**
+     * @param id the (unquoted) corpus-id or query id
+     * @return the row of the id, -1 if the file has no embedding for it
+     */
+    public int row(String id){
+        Integer row = rows.get(id);
+        return row == null ? -1 : row;
+    }
+
+    public String id(int row){
+        return ids[row];
+    }
+
+    /**
+     * Copy a row out of the mapping
+     * @param row the row to copy
+     * @param dst array of at least {@link #dimension()} floats
+     * @return dst
+     */
+    public float[] vector(int row, float[] dst){
+        slices[row / rowsPerSlice].get((row % rowsPerSlice) * dimension, dst, 0, dimension);
+        return dst;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,91 @@
+package org.example;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * The (quoted) corpus-id of every document, indexed by Lucene doc id: the UTF-8 bytes of the ids back
+ * to back, and the offset of each document's id. Looking up the id of a hit is an array access, without
+ * reading its stored fields, and documents sharing the same text keep their own ids.
+ * The ids are read from the sorted doc values of the "id" field; segments written before the field had
+ * doc values fall back to its stored value, once, when the table is loaded.
+ */
+public class ExternalIds {
+
+    private static final Set<String> ID_FIELD = Set.of("id");
+
+    // Start of each document's id, one extra entry marks the end of the last id
+    private final int[] offsets;
+
+    private final byte[] bytes;
+
+    private ExternalIds(int[] offsets, byte[] bytes){
+        this.offsets = offsets;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Read the id of every document of a reader, e.g. a MultiReader over several shards
+     * @param reader the reader whose doc ids index the table
+     * @return the table of the reader's documents, deleted ones included
+     * @throws IOException if the doc values or the stored fields cannot be read
+     */
+    public static ExternalIds load(IndexReader reader) throws IOException {
+        int[] offsets = new int[reader.maxDoc() + 1];
+        byte[] bytes = new byte[reader.maxDoc() * 12];
+        int size = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            int maxDoc = leaf.reader().maxDoc();
+            SortedDocValues values = leaf.reader().getSortedDocValues("id");
+            StoredFields storedFields = values == null ? leaf.reader().storedFields() : null;
+            for (int doc = 0; doc < maxDoc; doc++) {
+                BytesRef id;
+                if (values != null){
+                    id = values.advanceExact(doc) ? values.lookupOrd(values.ordValue()) : null;
+                }else {
+                    String stored = storedFields.document(doc, ID_FIELD).get("id");
+                    id = stored == null ? null : new BytesRef(stored);
+                }
+                if (id != null){
+                    bytes = ArrayUtil.grow(bytes, size + id.length);
+                    System.arraycopy(id.bytes, id.offset, bytes, size, id.length);
+                    size += id.length;
+                }
+                offsets[leaf.docBase + doc + 1] = size;
+            }
+        }
+        return new ExternalIds(offsets, ArrayUtil.copyOfSubArray(bytes, 0, size));
+    }
+
+    /**
+     * @param docId the Lucene doc id
+     * @return the (quoted) corpus-id of the document, null if it has none
+     */
+    public String get(int docId){
+        int start = offsets[docId];
+        int length = offsets[docId + 1] - start;
+        return length == 0 ? null : new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return upper bound (exclusive) of the document ids
+     */
+    public int maxDoc(){
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return approximate heap usage of the table in bytes
+     */
+    public long ramBytesUsed(){
+        return 4L * offsets.length + bytes.length;
+    }
+}
@@ -0,0 +1,128 @@
+package org.example;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Document frequency and idf of every term of a field, computed in one pass over the field's
+ * terms enum and looked up by term id (or by bytes through the {@link TermDictionary}).
+ * Replaces one terms-dictionary seek per (document, term) and per query token.
+ * A table belongs to one reader, {@link #isCurrent} tells when it has to be rebuilt.
+ */
+public class IdfTable {
+
+    private final String field;
+
+    private final TermDictionary dictionary;
+
+    private final int[] docFreq;
+
+    private final double[] idf;
+
+    // idf of a term that is not in the field
+    private final double missingIdf;
+
+    // The reader the table was built from
+    private final IndexReader reader;
+
+    private IdfTable(String field, TermDictionary dictionary, int[] docFreq, double[] idf,
+                     double missingIdf, IndexReader reader){
+        this.field = field;
+        this.dictionary = dictionary;
+        this.docFreq = docFreq;
+        this.idf = idf;
+        this.missingIdf = missingIdf;
+        this.reader = reader;
+    }
+
+    /**
+     * Build the table of a field
+     * @param reader the reader to read the terms from
+     * @param field the field
+     * @param docCount the document count used in idf(df, docCount)
+     * @param similarity the similarity computing the idf
+     * @return the idf table of the field
+     * @throws IOException if the terms cannot be read
+     */
+    public static IdfTable build(IndexReader reader, String field, int docCount,
+                                 ClassicSimilarity similarity) throws IOException {
+        TermDictionary dictionary = new TermDictionary();
+        int[] docFreq = new int[1024];
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms != null){
+            TermsEnum iterator = terms.iterator();
+            BytesRef term;
+            while ((term = iterator.next()) != null){
+                int id = dictionary.add(term);
+                docFreq = ArrayUtil.grow(docFreq, id + 1);
+                docFreq[id] = iterator.docFreq();
+            }
+        }
+        int size = dictionary.size();
+        double[] idf = new double[size];
+        for (int id = 0; id < size; id++) {
+            idf[id] = similarity.idf(docFreq[id], docCount);
+        }
+        return new IdfTable(field, dictionary, ArrayUtil.copyOfSubArray(docFreq, 0, size), idf,
+                similarity.idf(0, docCount), reader);
+    }
+
+    /**
+     * @param reader the reader currently open
+     * @return true if the table was built from this reader
+     */
+    public boolean isCurrent(IndexReader reader){
+        return this.reader == reader;
+    }
+
+    public String getField(){
+        return field;
+    }
+
+    /**
+     * @return the dictionary of the field, ids follow the byte order of the terms
+     */
+    public TermDictionary getDictionary(){
+        return dictionary;
+    }
+
+    /**
+     * @param termId the id of the term, -1 for a term not in the field
+     * @return the idf of the term
+     */
+    public double idf(int termId){
+        return termId < 0 ? missingIdf : idf[termId];
+    }
+
+    /**
+     * @param term the term
+     * @return the idf of the term
+     */
+    public double idf(BytesRef term){
+        return idf(dictionary.id(term));
+    }
+
+    /**
+     * @param term the term
+     * @return the idf of the term
+     */
+    public double idf(String term){
+        return idf(dictionary.id(term));
+    }
+
+    /**
+     * @param term the term
+     * @return how many documents contain the term (deleted documents included, like IndexReader.docFreq)
+     */
+    public int docFreq(BytesRef term){
+        int termId = dictionary.id(term);
+        return termId < 0 ? 0 : docFreq[termId];
+    }
+}
@@ -0,0 +1,198 @@
+package org.example;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental updates of an existing index.
+ * Documents from a delta JSON lines file (same format as the corpus) are added, or replace the
+ * document with the same id. The changes are visible through the near-real-time
+ * {@link SearcherManager} right away, before any commit; see {@link Vector#refresh}.
+ * An index with document embeddings can only be updated with the embeddings of the new documents
+ * (-Dindexer.embeddings), otherwise the updated documents would silently drop out of the kNN search.
+ */
+public class IndexUpdater implements Closeable {
+
+    private final Directory directory;
+
+    private final IndexWriter writer;
+
+    // Near-real-time searchers on the writer
+    private final SearcherManager searcherManager;
+
+    // What the index keeps of the text fields
+    private final Indexer.Profile profile;
+
+    // Whether the index has the ids as doc values, an index built before them keeps going without
+    private final boolean idValues;
+
+    // Embeddings of the updated documents, null if the index has no vector field
+    private final EmbeddingMatrix embeddings;
+
+    // True if the embeddings were opened from -Dindexer.embeddings by this updater, closed with it
+    private final boolean ownsEmbeddings;
+
+    /**
+     * Open the default index for updates, with the embeddings of -Dindexer.embeddings if any
+     * @throws IOException if the index cannot be opened
+     */
+    public IndexUpdater() throws IOException {
+        this(Paths.get("src/main/java/org/example/indices"));
+    }
+
+    /**
+     * Open an index for updates, with the embeddings of -Dindexer.embeddings if any
+     * @param indexPath the index directory
+     * @throws IOException if the index cannot be opened
+     */
+    public IndexUpdater(Path indexPath) throws IOException {
+        this(indexPath, embeddingsFromSystemProperties(), true);
+    }
+
+    /**
+     * Open an index for updates
+     * @param indexPath the index directory
+     * @param embeddings the embeddings of the documents to update keyed by corpus _id, required if the index
+     *                   has a vector field; not closed by the updater
+     * @throws IOException if the index cannot be opened
+     */
+    public IndexUpdater(Path indexPath, EmbeddingMatrix embeddings) throws IOException {
+        this(indexPath, embeddings, false);
+    }
+
+    private IndexUpdater(Path indexPath, EmbeddingMatrix embeddings, boolean ownsEmbeddings) throws IOException {
+        this.embeddings = embeddings;
+        this.ownsEmbeddings = ownsEmbeddings;
+        this.directory = FSDirectory.open(indexPath);
+        Sort indexSort = null;
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            FieldInfos fieldInfos = FieldInfos.getMergedFieldInfos(reader);
+            FieldInfo id = fieldInfos.fieldInfo("id");
+            this.idValues = id == null || id.getDocValuesType() == DocValuesType.SORTED;
+            checkEmbeddings(fieldInfos.fieldInfo(Indexer.EMBEDDING_FIELD));
+            // The new segments must keep the sort of the index, if it was built with one
+            for (LeafReaderContext leaf : reader.leaves()) {
+                indexSort = leaf.reader().getMetaData().getSort();
+            }
+        } catch (IOException | RuntimeException e) {
+            directory.close();
+            closeEmbeddings();
+            throw e;
+        }
+        IndexWriterConfig config = new IndexWriterConfig(Indexer.createAnalyzer());
+        // Never wipe the index, only append to it
+        config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        if (indexSort != null){
+            config.setIndexSort(indexSort);
+        }
+        this.writer = new IndexWriter(directory, config);
+        // New documents get the field types of the profile the index was built with
+        this.profile = Indexer.Profile.fromCommitData(writer.getLiveCommitData());
+        this.searcherManager = new SearcherManager(writer, new SearcherFactory());
+    }
+
+    /**
+     * Add or update every document of a delta file, keyed by the id field
+     * @param delta the JSON lines file with the new or changed documents
+     * @return the (quoted) ids of the documents written
+     * @throws IOException if the delta cannot be read or indexed
+     */
+    public List<String> apply(Path delta) throws IOException {
+        List<String> ids = new ArrayList<>();
+        IndexingPipeline.DocumentTemplate template = new IndexingPipeline.DocumentTemplate(embeddings, profile, idValues);
+        long start = System.nanoTime();
+        try (JsonlFile file = JsonlFile.open(delta)) {
+            file.forEachLine((offset, chunk, lineStart, length) -> {
+                byte[] line = new byte[length];
+                chunk.get(lineStart, line);
+                if (template.parse(line)){
+                    // Deletes the previous version of the document, if any, in the same operation
+                    writer.updateDocument(new Term("id", template.id), template.document);
+                    ids.add(template.id);
+                }
+            });
+        }
+        System.out.printf("Applied %d documents from %s in %.2f seconds%n",
+                ids.size(), delta, (System.nanoTime() - start) / 1e9);
+        return ids;
+    }
+
+    // The updated documents must get a vector like the indexed ones, of the same dimension
+    private void checkEmbeddings(FieldInfo vectorField){
+        if (vectorField == null || vectorField.getVectorDimension() == 0){
+            return;
+        }
+        if (embeddings == null){
+            throw new IllegalStateException("The index has document embeddings (field " + Indexer.EMBEDDING_FIELD
+                    + "), pass the embeddings of the updated documents with -Dindexer.embeddings");
+        }
+        if (embeddings.dimension() != vectorField.getVectorDimension()){
+            throw new IllegalStateException("The embeddings have " + embeddings.dimension()
+                    + " dimensions, the index has " + vectorField.getVectorDimension());
+        }
+    }
+
+    private static EmbeddingMatrix embeddingsFromSystemProperties(){
+        String embeddingsPath = System.getProperty("indexer.embeddings");
+        if (embeddingsPath == null){
+            return null;
+        }
+        try {
+            return EmbeddingMatrix.open(Paths.get(embeddingsPath));
+        } catch (IOException e) {
+            System.out.println("Unable to read the embeddings " + embeddingsPath + ", updating without vectors");
+            return null;
+        }
+    }
+
+    private void closeEmbeddings() throws IOException {
+        if (ownsEmbeddings && embeddings != null){
+            embeddings.close();
+        }
+    }
+
+    /**
+     * Make the applied documents durable
+     * @throws IOException if the commit fails
+     */
+    public void commit() throws IOException {
+        writer.commit();
+    }
+
+    public SearcherManager getSearcherManager(){
+        return searcherManager;
+    }
+
+    public IndexWriter getWriter(){
+        return writer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        } finally {
+            closeEmbeddings();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.example;
 
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.lucene.analysis.Analyzer;
@@ -9,19 +10,86 @@ import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class Indexer {
 
-    // Directory for the indices
-    private Directory directory;
+    /**
+     * What the index keeps of the text fields.
+     * Vector only reads the term frequencies from the term vectors and the stored id and text,
+     * so the lean profile drops everything else.
+     */
+    public enum Profile {
+        // Positions and offsets in the postings and term vectors, every text field stored
+        FULL(TERM_VECTOR_TYPE, TERM_VECTOR_TYPE, TextField.TYPE_STORED),
+        // Frequencies only, no norms, combined (title + " " + text) not stored
+        LEAN(leanType(true), leanType(false), leanMetadataType());
+
+        final FieldType textType;
+        final FieldType combinedType;
+        final FieldType metadataType;
+
+        Profile(FieldType textType, FieldType combinedType, FieldType metadataType){
+            this.textType = textType;
+            this.combinedType = combinedType;
+            this.metadataType = metadataType;
+        }
+
+        /**
+         * @return the profile configured by -Dindexer.profile=full|lean (default full)
+         */
+        public static Profile fromSystemProperties(){
+            return fromName(System.getProperty("indexer.profile", "full"));
+        }
+
+        public static Profile fromName(String name){
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown index profile: " + name + " (expected full or lean)");
+            }
+        }
+
+        /**
+         * The profile an index was built with, recorded in its commit user data
+         * @param commitData the user data of the latest commit
+         * @return the profile of the index, FULL for indices built before the profiles existed
+         */
+        public static Profile fromCommitData(Iterable<Map.Entry<String, String>> commitData){
+            if (commitData != null){
+                for (Map.Entry<String, String> entry : commitData) {
+                    if (entry.getKey().equals(PROFILE_KEY)){
+                        return fromName(entry.getValue());
+                    }
+                }
+            }
+            return FULL;
+        }
+    }
+
+    // Doc id order within each segment: by corpus id, whatever the order the documents were added in.
+    // The score ties are broken on the doc id (see ScoreHeap); a build merged into one segment per shard
+    // (the default) gives every document the same doc id whatever the number of indexing threads
+    static final Sort ID_ORDER = new Sort(new SortField("id", SortField.Type.STRING));
+
+    // Commit user data key holding the profile of the index
+    static final String PROFILE_KEY = "indexer.profile";
+
+    // Directory of each shard, a single one unless the index is sharded
+    private Directory[] directories;
 
     // Reader to reade the json files
     private BufferedReader reader;
@@ -33,87 +101,383 @@ public class Indexer {
     private static final CharArraySet ENGLISH_STOP_WORDS_SET = getStopWords();
 
     // Tokenizer
-    private final Analyzer analyzer = new EnglishAnalyzer(ENGLISH_STOP_WORDS_SET);
+    private final Analyzer analyzer = createAnalyzer();
+
+    // To build inverted index, one writer per shard
+    private IndexWriter[] writers;
+
+    // Field type of title, text and combined, built once
+    static final FieldType TERM_VECTOR_TYPE = termVectorType();
+
+    // Dense vector field searched with HNSW, see Vector#setQueryEmbeddings
+    static final String EMBEDDING_FIELD = "embedding";
+
+    // Optional document embeddings keyed by corpus _id, null to index the text fields only
+    private EmbeddingMatrix embeddings;
+
+    // What the index keeps of the text fields
+    private Profile profile = Profile.FULL;
 
-    // To build inverted index
-    private IndexWriter writer;
+    // Whether a build ends with a merge into one sorted segment per shard, see mergeInIdOrder
+    private boolean merge = true;
+
+    // The corpus to index
+    private final Path corpusPath;
+
+    // The index directory of each shard, for the size report
+    private final List<Path> indexPaths;
 
     public Indexer(){
+        this(Paths.get("src/main/java/corpus.jsonl.json"), Paths.get("src/main/java/org/example/indices"));
+    }
+
+    /**
+     * Indexer on other files than the default ones (e.g. benchmarks)
+     * @param corpusPath the JSON lines corpus
+     * @param indexPath the index directory
+     */
+    public Indexer(Path corpusPath, Path indexPath){
+        this(corpusPath, List.of(indexPath));
+    }
+
+    /**
+     * Indexer hash-partitioning the corpus across several index directories, see {@link ShardedIndex#shardOf}
+     * @param corpusPath the JSON lines corpus
+     * @param indexPaths the index directory of each shard
+     */
+    public Indexer(Path corpusPath, List<Path> indexPaths){
+        this.corpusPath = corpusPath;
+        this.indexPaths = List.copyOf(indexPaths);
         initializeIndexer();
     }
 
     private void initializeIndexer(){
         try{
-            this.directory = FSDirectory.open(Paths.get("src/main/java/org/example/indices"));
+            this.directories = new Directory[indexPaths.size()];
+            this.writers = new IndexWriter[indexPaths.size()];
+            for (int i = 0; i < writers.length; i++) {
+                directories[i] = FSDirectory.open(indexPaths.get(i));
+                IndexWriterConfig config = new IndexWriterConfig(analyzer);
+                config.setIndexSort(ID_ORDER);
+                writers[i] = new IndexWriter(directories[i], config);
+            }
             // Let the reader ready to read the corpus file
-            this.reader = Files.newBufferedReader(Paths.get("src/main/java/corpus.jsonl.json"));
-            IndexWriterConfig config = new IndexWriterConfig(analyzer);
-            this.writer = new IndexWriter(directory, config);
+            this.reader = Files.newBufferedReader(corpusPath);
         }catch (IOException e){
             e.printStackTrace();
         }
     }
 
-    public Map<String, String> index(){
+    /**
+     * Index the corpus line by line on this thread
+     * @return the number of documents indexed
+     */
+    public long index(){
         // 1. Prepare documents
-        Map<String, String> corpuseList = new HashMap();
+        long indexed = 0;
         try {
             // Read each line
             String line;
             while ((line = reader.readLine()) != null) {
                 Document document = new Document();
                 // Customize store options
-                FieldType customType = new FieldType();
-                customType.setStored(true);
-                customType.setTokenized(true);
-                customType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-                // Must store the term vectors for calculating tf_idf value
-                customType.setStoreTermVectors(true);
-                customType.setStoreTermVectorPositions(true);
-                customType.setStoreTermVectorOffsets(true);
-                customType.freeze();
+                FieldType customType = profile.textType;
 
                 // Retrieve
                 JsonNode jsonNode = objectMapper.readTree(line);
 
-                String corpusID = jsonNode.get("_id").toString();
+                String corpusID = corpusId(jsonNode.get("_id"));
+                if (corpusID == null){
+                    continue;
+                }
                 String corpusText = jsonNode.get("text").asText();
-                // For later write to the output file
-                corpuseList.put(corpusText, corpusID);
                 // Convert each field into Lucene's field
                 document.add(new StringField("id", corpusID, Field.Store.YES));
+                // For later write to the output file, see ExternalIds
+                document.add(new SortedDocValuesField("id", new BytesRef(corpusID)));
                 // Let title and text field share the same tokenizer
                 document.add(new Field("title", jsonNode.get("title").asText(), customType));
                 document.add(new Field("text", corpusText, customType));
                 String combinedContent = jsonNode.get("title").asText() + " " + corpusText;
-                document.add(new Field("combined", combinedContent, customType));
-                document.add(new TextField("metadata", jsonNode.get("metadata").asText(), Field.Store.YES));
+                document.add(new Field("combined", combinedContent, profile.combinedType));
+                document.add(new Field("metadata", jsonNode.get("metadata").asText(), profile.metadataType));
+                if (embeddings != null){
+                    int row = embeddings.row(jsonNode.get("_id").asText());
+                    if (row >= 0){
+                        document.add(embeddingField(embeddings.vector(row, new float[embeddings.dimension()])));
+                    }
+                }
 
                 // 3. Indexing
-                writer.addDocument(document);
+                writers[ShardedIndex.shardOf(corpusID, writers.length)].addDocument(document);
+                indexed++;
+            }
+            if (merge){
+                mergeInIdOrder();
+            }
+            return indexed;
+        }catch (IOException e){
+            e.printStackTrace();
+            return indexed;
+        }finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Index the corpus with the multi-threaded pipeline
+     * @param threads number of parsing / indexing threads
+     * @param ramBufferSizeMB RAM the writer may buffer before flushing a segment
+     * @return the number of documents indexed
+     */
+    public long index(int threads, double ramBufferSizeMB){
+        try {
+            for (IndexWriter writer : writers) {
+                // Every shard gets its share of the buffer
+                writer.getConfig().setRAMBufferSizeMB(ramBufferSizeMB / writers.length);
+            }
+            long indexed = new IndexingPipeline(writers, threads, embeddings, profile).run(corpusPath);
+            if (merge){
+                mergeInIdOrder();
             }
-            return corpuseList;
+            return indexed;
         }catch (IOException e){
             e.printStackTrace();
-            return Collections.emptyMap();
+            return 0;
         }finally {
             closeAll();
         }
     }
 
+    /**
+     * Index with the pipeline configured by -Dindexer.threads (default: number of cores),
+     * -Dindexer.ramBufferMB (default 256), -Dindexer.embeddings (document embeddings, default none)
+     * -Dindexer.profile (full or lean, default full) and -Dindexer.merge (merge each shard into one sorted
+     * segment after the build, default true; false skips the merge, the doc ids then depend on the threads)
+     * @return the number of documents indexed
+     */
+    public long indexFromSystemProperties(){
+        setProfile(Profile.fromSystemProperties());
+        setMerge(Boolean.parseBoolean(System.getProperty("indexer.merge", "true")));
+        int threads = Integer.getInteger("indexer.threads", Runtime.getRuntime().availableProcessors());
+        double ramBufferSizeMB = Double.parseDouble(System.getProperty("indexer.ramBufferMB", "256"));
+        String embeddingsPath = System.getProperty("indexer.embeddings");
+        EmbeddingMatrix matrix = null;
+        if (embeddingsPath != null){
+            try {
+                matrix = EmbeddingMatrix.open(Paths.get(embeddingsPath));
+            } catch (IOException e) {
+                System.out.println("Unable to read the embeddings " + embeddingsPath + ", indexing without vectors");
+            }
+        }
+        setEmbeddings(matrix);
+        try {
+            long start = System.nanoTime();
+            long indexed = index(threads, ramBufferSizeMB);
+            try {
+                long size = 0;
+                for (Path indexPath : indexPaths) {
+                    size += sizeOf(indexPath);
+                }
+                System.out.printf("Built the %s index (%d shard%s) in %.2f seconds, %.2f MB on disk (-Dindexer.profile=full|lean)%n",
+                        profile.name().toLowerCase(Locale.ROOT), indexPaths.size(), indexPaths.size() > 1 ? "s" : "",
+                        (System.nanoTime() - start) / 1e9, size / (1024.0 * 1024.0));
+            } catch (IOException e) {
+                System.out.println("Unable to measure the index " + indexPaths);
+            }
+            return indexed;
+        } finally {
+            if (matrix != null){
+                try {
+                    matrix.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Also index a dense vector per document, searched with HNSW
+     * @param embeddings the document embeddings keyed by corpus _id, null to index the text fields only;
+     *                   documents without an embedding get no vector
+     */
+    public void setEmbeddings(EmbeddingMatrix embeddings){
+        this.embeddings = embeddings;
+    }
+
+    /**
+     * @param profile what the index keeps of the text fields, recorded in the commit for later updates
+     */
+    public void setProfile(Profile profile){
+        this.profile = profile;
+    }
+
+    public Profile getProfile(){
+        return profile;
+    }
+
+    /**
+     * @param merge true (the default) to end every build with a merge into one segment per shard, sorted by
+     *              {@link #ID_ORDER}, so the doc ids no longer depend on how the indexing threads interleaved;
+     *              false saves the merge, but ties in the results may then come out in a different order
+     */
+    public void setMerge(boolean merge){
+        this.merge = merge;
+    }
+
+    /**
+     * Build the index of a corpus with every profile into temporary directories and print
+     * the build time and the size on disk of each one
+     * @param corpusPath the JSON lines corpus
+     * @param threads number of indexing threads
+     * @throws IOException if a temporary index cannot be created or measured
+     */
+    public static void compareProfiles(Path corpusPath, int threads) throws IOException {
+        System.out.printf("%-8s %10s %12s%n", "profile", "seconds", "size (MB)");
+        long fullSize = 0;
+        for (Profile profile : Profile.values()) {
+            Path indexPath = Files.createTempDirectory("index-" + profile.name().toLowerCase(Locale.ROOT));
+            try {
+                Indexer indexer = new Indexer(corpusPath, indexPath);
+                indexer.setProfile(profile);
+                long start = System.nanoTime();
+                indexer.index(threads, 256);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long size = sizeOf(indexPath);
+                if (profile == Profile.FULL){
+                    fullSize = size;
+                }
+                System.out.printf("%-8s %10.2f %12.2f%s%n", profile.name().toLowerCase(Locale.ROOT), seconds,
+                        size / (1024.0 * 1024.0),
+                        profile == Profile.FULL || fullSize == 0 ? "" : String.format(" (%.0f%% of full)", 100.0 * size / fullSize));
+            } finally {
+                try (Stream<Path> files = Files.walk(indexPath)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param indexPath an index directory
+     * @return the size of the files of the index in bytes
+     * @throws IOException if the directory cannot be listed
+     */
+    public static long sizeOf(Path indexPath) throws IOException {
+        try (Stream<Path> files = Files.list(indexPath)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
     public Analyzer getAnalyzer(){
         return this.analyzer;
     }
 
+    /**
+     * Create the analyzer used for indexing, for readers opening an existing index
+     * @return a new analyzer with the same stop words as the index
+     */
+    public static Analyzer createAnalyzer(){
+        return new EnglishAnalyzer(ENGLISH_STOP_WORDS_SET);
+    }
+
+    /**
+     * Merge every shard into a single segment, sorted by {@link #ID_ORDER}.
+     * The segments flushed by concurrent threads hold whichever documents each thread added, and the segment
+     * order depends on which thread flushed first; one sorted segment gives every document the same doc id
+     * on every build, with one thread or many. The merge rewrites the whole index once more, it can be
+     * skipped with {@link #setMerge}, and its time is reported apart from the indexing throughput.
+     * @throws IOException if the segments cannot be merged
+     */
+    private void mergeInIdOrder() throws IOException {
+        long start = System.nanoTime();
+        for (IndexWriter writer : writers) {
+            writer.forceMerge(1);
+        }
+        System.out.printf("Merged the index (%d shard%s) into one sorted segment per shard in %.2f seconds%n",
+                writers.length, writers.length > 1 ? "s" : "", (System.nanoTime() - start) / 1e9);
+    }
+
     private void closeAll(){
         try {
             this.reader.close();
-            this.writer.close();
+            for (IndexWriter writer : writers) {
+                // Later updates must add documents with the same field types
+                writer.setLiveCommitData(Map.of(PROFILE_KEY, profile.name()).entrySet());
+                writer.close();
+            }
         }catch (IOException e){
             e.printStackTrace();
         }
     }
 
+    /**
+     * The corpus-id a document is indexed under: the JSON representation of its _id, as Jackson writes it
+     * ({@link JsonNode#toString()}), so a string keeps its quotes and escapes and a number has none.
+     * Both indexing paths go through it, the id decides the shard of the document, its place in
+     * {@link #ID_ORDER} and the document an {@link IndexUpdater} replaces
+     * @param id the _id of the document
+     * @return the corpus-id, null if the document has no _id
+     */
+    static String corpusId(JsonNode id){
+        if (id == null || id.isNull()){
+            return null;
+        }
+        return id.isTextual() ? corpusId(id.textValue()) : id.toString();
+    }
+
+    /**
+     * @param id the text of a string _id
+     * @return the corpus-id of the document, see {@link #corpusId(JsonNode)}
+     */
+    static String corpusId(String id){
+        return "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(id)) + "\"";
+    }
+
+    /**
+     * @param vector the embedding of a document
+     * @return the dense vector field of the document
+     */
+    static KnnFloatVectorField embeddingField(float[] vector){
+        return new KnnFloatVectorField(EMBEDDING_FIELD, vector, VectorSimilarityFunction.COSINE);
+    }
+
+    private static FieldType termVectorType(){
+        FieldType customType = new FieldType();
+        customType.setStored(true);
+        customType.setTokenized(true);
+        customType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        // Must store the term vectors for calculating tf_idf value
+        customType.setStoreTermVectors(true);
+        customType.setStoreTermVectorPositions(true);
+        customType.setStoreTermVectorOffsets(true);
+        customType.freeze();
+        return customType;
+    }
+
+    // Title and text are stored for the results, combined is only their concatenation
+    private static FieldType leanType(boolean stored){
+        FieldType customType = new FieldType();
+        customType.setStored(stored);
+        customType.setTokenized(true);
+        // The cosine never reads positions, nor the norms of Lucene's own scoring
+        customType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        customType.setOmitNorms(true);
+        // The term vectors only need the frequencies for calculating tf_idf value
+        customType.setStoreTermVectors(true);
+        customType.freeze();
+        return customType;
+    }
+
+    private static FieldType leanMetadataType(){
+        FieldType customType = new FieldType(TextField.TYPE_STORED);
+        customType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        customType.setOmitNorms(true);
+        customType.freeze();
+        return customType;
+    }
+
     // Get the stop words from the file
     public static CharArraySet getStopWords(){
         try (BufferedReader reader = Files.newBufferedReader(Paths.get("src/main/java/stop_words.txt"))) {
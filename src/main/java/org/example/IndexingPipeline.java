@@ -0,0 +1,296 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multi-threaded ingestion of a JSON lines corpus into an {@link IndexWriter}.
+ *
+ * Stages:
+ *   1. Reader: splits the memory-mapped corpus into batches of lines
+ *   2. Workers: parse each line with Jackson's streaming parser into a reused document template,
+ *      then add it to the (thread-safe) writer of its shard
+ * The documents reach the writers in no particular order, each segment is sorted on the id
+ * (see {@link Indexer#ID_ORDER}).
+ */
+public class IndexingPipeline {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // Reads the _id values that are not strings, e.g. numbers, into the node Indexer.corpusId expects
+    private static final ObjectMapper ID_READER = new ObjectMapper();
+
+    // Lines handed to a worker at once
+    private static final int BATCH_SIZE = 256;
+
+    // Marks the end of the input for the workers
+    private static final byte[][] END = new byte[0][];
+
+    // One writer per shard, see ShardedIndex#shardOf
+    private final IndexWriter[] writers;
+
+    private final int threads;
+
+    // Optional document embeddings, null to index the text fields only
+    private final EmbeddingMatrix embeddings;
+
+    // What the index keeps of the text fields
+    private final Indexer.Profile profile;
+
+    public IndexingPipeline(IndexWriter writer, int threads){
+        this(writer, threads, null);
+    }
+
+    public IndexingPipeline(IndexWriter writer, int threads, EmbeddingMatrix embeddings){
+        this(new IndexWriter[]{writer}, threads, embeddings, Indexer.Profile.FULL);
+    }
+
+    /**
+     * @param writers the writer of each shard, the documents are hash-partitioned on their id
+     * @param threads number of parsing / indexing threads
+     * @param embeddings the document embeddings keyed by corpus _id, null to index the text fields only
+     * @param profile what the index keeps of the text fields
+     */
+    public IndexingPipeline(IndexWriter[] writers, int threads, EmbeddingMatrix embeddings, Indexer.Profile profile){
+        if (threads < 1){
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.writers = writers;
+        this.threads = threads;
+        this.embeddings = embeddings;
+        this.profile = profile;
+    }
+
+    /**
+     * Index every document of the corpus
+     * @param corpus the JSON lines corpus
+     * @return the number of documents indexed
+     * @throws IOException if the corpus cannot be read or a document cannot be indexed
+     */
+    public long run(Path corpus) throws IOException {
+        BlockingQueue<byte[][]> queue = new ArrayBlockingQueue<>(threads * 4);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong indexed = new AtomicLong();
+        long start = System.nanoTime();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> work(queue, indexed, failure));
+        }
+        try (JsonlFile file = JsonlFile.open(corpus)) {
+            // Reader stage: copy the lines out of the mapping in batches
+            byte[][][] batch = {new byte[BATCH_SIZE][]};
+            int[] size = {0};
+            file.forEachLine((offset, chunk, lineStart, length) -> {
+                byte[] line = new byte[length];
+                chunk.get(lineStart, line);
+                batch[0][size[0]++] = line;
+                if (size[0] == BATCH_SIZE){
+                    if (failure.get() != null){
+                        // A worker failed, stop reading
+                        throw new IOException("Indexing failed", failure.get());
+                    }
+                    put(queue, batch[0], failure);
+                    batch[0] = new byte[BATCH_SIZE][];
+                    size[0] = 0;
+                }
+            });
+            if (size[0] > 0){
+                byte[][] last = new byte[size[0]][];
+                System.arraycopy(batch[0], 0, last, 0, size[0]);
+                put(queue, last, failure);
+            }
+        } finally {
+            // One end marker per worker
+            for (int i = 0; i < threads; i++) {
+                put(queue, END, null);
+            }
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure.get() != null){
+            throw new IOException("Indexing failed", failure.get());
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Indexed %d documents with %d threads in %.2f seconds (%.0f docs/s)%n",
+                indexed.get(), threads, seconds, indexed.get() / Math.max(seconds, 1e-9));
+        return indexed.get();
+    }
+
+    // Worker stage: parse and add documents until the end marker
+    private void work(BlockingQueue<byte[][]> queue, AtomicLong indexed, AtomicReference<Throwable> failure){
+        DocumentTemplate template = new DocumentTemplate(embeddings, profile, true);
+        try {
+            while (true){
+                byte[][] batch = queue.take();
+                if (batch == END){
+                    return;
+                }
+                if (failure.get() != null){
+                    // Drain the queue so the reader never blocks
+                    continue;
+                }
+                for (byte[] line : batch) {
+                    if (template.parse(line)){
+                        writers[ShardedIndex.shardOf(template.id, writers.length)].addDocument(template.document);
+                        indexed.incrementAndGet();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            // Keep draining so the reader and the other workers can finish
+            try {
+                while (queue.take() != END) {
+                    // Discard
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void put(BlockingQueue<byte[][]> queue, byte[][] batch, AtomicReference<Throwable> failure) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (failure != null){
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * The fields of a corpus document, created once per worker and refilled for every line.
+     * Lucene allows re-adding the same field instances as long as it happens on one thread.
+     */
+    static final class DocumentTemplate {
+
+        final Document document = new Document();
+        private final Field idField = new StringField("id", "", Field.Store.YES);
+        // The id again as sorted doc values, read back into the ExternalIds table
+        private final Field idValuesField = new SortedDocValuesField("id", new BytesRef());
+        private final Field titleField;
+        private final Field textField;
+        private final Field combinedField;
+        private final Field metadataField;
+
+        // Dense vector, only part of the document when the line has an embedding
+        private final EmbeddingMatrix embeddings;
+        private final float[] vector;
+        private final KnnFloatVectorField embeddingField;
+
+        String id;
+
+        /**
+         * @param embeddings the document embeddings, null to index without vectors
+         * @param profile what the index keeps of the text fields
+         * @param idValues true to also index the id as doc values, false for an index built without them
+         *                 (a field cannot get doc values in a later segment)
+         */
+        DocumentTemplate(EmbeddingMatrix embeddings, Indexer.Profile profile, boolean idValues){
+            titleField = new Field("title", "", profile.textType);
+            textField = new Field("text", "", profile.textType);
+            combinedField = new Field("combined", "", profile.combinedType);
+            metadataField = new Field("metadata", "", profile.metadataType);
+            document.add(idField);
+            if (idValues){
+                document.add(idValuesField);
+            }
+            document.add(titleField);
+            document.add(textField);
+            document.add(combinedField);
+            document.add(metadataField);
+            this.embeddings = embeddings;
+            // The writer copies the vector on addDocument, so one array per worker is enough
+            this.vector = embeddings == null ? null : new float[embeddings.dimension()];
+            this.embeddingField = embeddings == null ? null : Indexer.embeddingField(vector);
+        }
+
+        /**
+         * Stream the line into the fields
+         * @param line one JSON document
+         * @return false if the line has no _id
+         */
+        boolean parse(byte[] line) throws IOException {
+            String rawId = null;
+            String corpusId = null;
+            String title = "";
+            String corpusText = "";
+            String metadata = "";
+            try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT){
+                    return false;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME){
+                    String name = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    switch (name) {
+                        case "_id" -> {
+                            if (value == JsonToken.VALUE_STRING){
+                                rawId = parser.getText();
+                                corpusId = Indexer.corpusId(rawId);
+                            }else {
+                                JsonNode node = ID_READER.readTree(parser);
+                                rawId = node.asText();
+                                corpusId = Indexer.corpusId(node);
+                            }
+                        }
+                        case "title" -> title = textOf(parser, value);
+                        case "text" -> corpusText = textOf(parser, value);
+                        case "metadata" -> metadata = textOf(parser, value);
+                        default -> parser.skipChildren();
+                    }
+                }
+            }
+            if (corpusId == null){
+                return false;
+            }
+            id = corpusId;
+            idField.setStringValue(id);
+            idValuesField.setBytesValue(new BytesRef(id));
+            titleField.setStringValue(title);
+            textField.setStringValue(corpusText);
+            combinedField.setStringValue(title + " " + corpusText);
+            metadataField.setStringValue(metadata);
+            if (embeddings != null){
+                document.removeFields(Indexer.EMBEDDING_FIELD);
+                int row = embeddings.row(rawId);
+                if (row >= 0){
+                    embeddings.vector(row, vector);
+                    document.add(embeddingField);
+                }
+            }
+            return true;
+        }
+
+        // Like JsonNode.asText(): objects and arrays become an empty string
+        private static String textOf(JsonParser parser, JsonToken value) throws IOException {
+            if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY){
+                parser.skipChildren();
+                return "";
+            }
+            return value == JsonToken.VALUE_NULL ? "null" : parser.getValueAsString("");
+        }
+    }
+}
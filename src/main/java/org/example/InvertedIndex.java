@@ -0,0 +1,574 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Term-at-a-time view of the document vectors.
+ * For each term it keeps the ids of the documents containing it (ascending) together with
+ * the normalized tf_idf weight of the term in those documents, so a query only has to walk
+ * the postings of its own terms instead of every document vector.
+ * The postings are packed per term id of the store's {@link TermDictionary}.
+ */
+public class InvertedIndex {
+
+    // Reusable score accumulator, used by one query at a time
+    private static final class Accumulator {
+        private double[] scores = new double[0];
+        // Documents with a non-zero score, so resetting does not touch the whole array
+        private int[] touched = new int[0];
+        // Candidates of a MaxScore window still in the race, and their cosine denominators
+        private final int[] liveDocs = new int[WINDOW];
+        private final double[] norms = new double[WINDOW];
+        // Scores of a micro-batch window, document after document, one slot per query of the batch
+        private double[] batchScores = new double[0];
+        // Documents of a micro-batch window touched by any query of the batch
+        private boolean[] seen = new boolean[0];
+
+        private void ensureCapacity(int maxDoc){
+            if (scores.length < maxDoc){
+                scores = new double[maxDoc];
+                touched = new int[maxDoc];
+            }
+        }
+
+        private void ensureBatchCapacity(int window, int batch){
+            if (batchScores.length < window * batch){
+                batchScores = new double[window * batch];
+            }
+            if (seen.length < window){
+                seen = new boolean[window];
+            }
+            if (touched.length < window){
+                touched = new int[window];
+            }
+        }
+    }
+
+    private final DocumentVectorStore store;
+
+    // Start of each term's postings, one extra entry marks the end of the last one
+    private final int[] offsets;
+
+    // Document id and weight of every posting, term by term
+    private final int[] docs;
+    private final float[] weights;
+
+    // Largest normalized weight (weight / document length) of each term, the MaxScore upper bounds
+    private final double[] maxWeights;
+
+    // Relative slack on the upper bounds, so rounding never prunes a document that belongs in the top k
+    private static final double BOUND_SLACK = 1e-9;
+
+    // Documents per MaxScore window
+    private static final int WINDOW = 1 << 11;
+
+    // A non-essential term is galloped through only when its postings in the window outnumber the candidates
+    // by this much, below that sorting the candidates and searching costs more than reading every posting
+    private static final int GALLOP_RATIO = 8;
+
+    // Score slots of a micro-batch window (documents times queries), small enough to stay in the cache
+    private static final int BATCH_SLOTS = 1 << 15;
+
+    // Idle accumulators, shared instead of thread-local so short-lived virtual threads reuse them too
+    private final ConcurrentLinkedQueue<Accumulator> accumulators = new ConcurrentLinkedQueue<>();
+
+    private InvertedIndex(DocumentVectorStore store, int[] offsets, int[] docs, float[] weights, double[] maxWeights){
+        this.store = store;
+        this.offsets = offsets;
+        this.docs = docs;
+        this.weights = weights;
+        this.maxWeights = maxWeights;
+    }
+
+    /**
+     * Invert the document vectors
+     * @param documentVector the document vector of the corpus
+     * @return the inverted index of the document vectors
+     */
+    public static InvertedIndex build(Map<Integer, Map<String, Double>> documentVector){
+        return build(DocumentVectorStore.fromMap(documentVector, null));
+    }
+
+    /**
+     * Invert the packed document vectors
+     * @param store the packed document vector of the corpus
+     * @return the inverted index of the document vectors
+     */
+    public static InvertedIndex build(DocumentVectorStore store){
+        store.requireWeights();
+        int numTerms = store.getDictionary().size();
+        // First pass: count the postings of each term
+        int[] offsets = new int[numTerms + 1];
+        for (int i = 0; i < store.size(); i++) {
+            offsets[store.termId(i) + 1]++;
+        }
+        for (int t = 0; t < numTerms; t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        // Second pass: fill the postings in ascending doc id order
+        int[] position = Arrays.copyOf(offsets, numTerms);
+        int[] docs = new int[store.size()];
+        float[] weights = new float[store.size()];
+        double[] maxWeights = new double[numTerms];
+        for (int docId = 0; docId < store.maxDoc(); docId++) {
+            for (int i = store.start(docId); i < store.end(docId); i++) {
+                int termId = store.termId(i);
+                int p = position[termId]++;
+                docs[p] = docId;
+                weights[p] = store.weight(i);
+                maxWeights[termId] = Math.max(maxWeights[termId], store.weight(i) / (double) store.length(docId));
+            }
+        }
+        return new InvertedIndex(store, offsets, docs, weights, maxWeights);
+    }
+
+    /**
+     * Compute the top k Cosine Similarities by walking the postings of the query terms only
+     * @param queryVector the query vector to compute with
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> search(Map<String, Double> queryVector, int k){
+        return search(QueryVector.of(queryVector, store.getDictionary()), k);
+    }
+
+    /**
+     * Compute the top k Cosine Similarities by walking the postings of the query terms only
+     * @param queryVector the query vector to compute with, resolved against the store's dictionary
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> search(QueryVector queryVector, int k){
+        checkDictionary(queryVector);
+        Accumulator acc = accumulators.poll();
+        if (acc == null){
+            acc = new Accumulator();
+        }
+        acc.ensureCapacity(store.maxDoc());
+        double[] scores = acc.scores;
+        int[] touched = acc.touched;
+        int touchedCount = 0;
+        long postings = 0;
+        long start = QueryMetrics.start();
+
+        // Term-at-a-time: add each query term's contribution to the documents containing it
+        for (int q = 0; q < queryVector.size(); q++) {
+            double queryWeight = queryVector.weight(q);
+            int termId = queryVector.termId(q);
+            postings += offsets[termId + 1] - offsets[termId];
+            touchedCount = accumulate(offsets[termId], offsets[termId + 1], queryWeight, scores, touched, touchedCount);
+        }
+        double queryLength = queryVector.length();
+        QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+        QueryMetrics.add(QueryMetrics.Counter.POSTINGS_SCORED, postings);
+        QueryMetrics.add(QueryMetrics.Counter.DOCUMENTS_TOUCHED, touchedCount);
+
+        start = QueryMetrics.start();
+        // Select the best k with a bounded min-heap and reset the accumulator on the way
+        ScoreHeap heap = new ScoreHeap(k);
+        for (int i = 0; i < touchedCount; i++) {
+            int doc = touched[i];
+            double cosineSimilarity = scores[doc] / (queryLength * store.length(doc));
+            scores[doc] = 0.0;
+            // Filter unrelated documents
+            if (cosineSimilarity > 0.0){
+                heap.offer(doc, cosineSimilarity);
+            }
+        }
+        accumulators.offer(acc);
+        LinkedHashMap<Integer, Double> similarities = heap.drainDescending();
+        QueryMetrics.record(QueryMetrics.Stage.TOP_K, start);
+        return similarities;
+    }
+
+    /**
+     * Compute the top k Cosine Similarities with MaxScore pruning.
+     * The query terms are ordered by their upper bound (query weight times the term's largest normalized
+     * weight); once the bounds of the weakest terms add up to less than the k-th best score, those terms
+     * become non-essential: documents containing only them are never visited. The documents are processed
+     * in windows of doc ids: the essential terms are accumulated term-at-a-time in each window, then the
+     * non-essential terms, strongest first, are only added to the candidates whose score plus the bounds of
+     * the remaining terms can still beat the k-th best, galloping through their postings from one candidate
+     * to the next (a non-essential term dense in the window is simply accumulated with the essential ones).
+     * Returns the same documents as {@link #search}, the scores may only differ by rounding in the last bit.
+     * @param queryVector the query vector to compute with
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> searchMaxScore(Map<String, Double> queryVector, int k){
+        return searchMaxScore(QueryVector.of(queryVector, store.getDictionary()), k);
+    }
+
+    /**
+     * Compute the top k Cosine Similarities with MaxScore pruning, see {@link #searchMaxScore(Map, int)}
+     * @param queryVector the query vector to compute with, resolved against the store's dictionary
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> searchMaxScore(QueryVector queryVector, int k){
+        checkDictionary(queryVector);
+        long start = QueryMetrics.start();
+        // The query terms found in the index
+        int n = queryVector.size();
+        double queryLength = queryVector.length();
+
+        // Terms by ascending upper bound, termBounds[i] is the best contribution of term i to a cosine
+        Integer[] order = new Integer[n];
+        double[] termBounds = new double[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            termBounds[i] = queryVector.weight(i) * maxWeights[queryVector.termId(i)] / queryLength;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(termBounds[a], termBounds[b]));
+        // Per sorted position: query weight, a cursor in the postings, and the sum of the bounds before it
+        double[] weight = new double[n];
+        int[] position = new int[n];
+        int[] end = new int[n];
+        int[] windowPosition = new int[n];
+        double[] prefix = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            int slot = order[i];
+            int termId = queryVector.termId(slot);
+            weight[i] = queryVector.weight(slot);
+            position[i] = offsets[termId];
+            end[i] = offsets[termId + 1];
+            prefix[i + 1] = prefix[i] + termBounds[slot];
+        }
+
+        Accumulator acc = accumulators.poll();
+        if (acc == null){
+            acc = new Accumulator();
+        }
+        acc.ensureCapacity(store.maxDoc());
+        double[] scores = acc.scores;
+        int[] touched = acc.touched;
+        int[] liveDocs = acc.liveDocs;
+        double[] norms = acc.norms;
+
+        ScoreHeap heap = new ScoreHeap(k);
+        // Terms before this position are non-essential: on their own they cannot reach the top k
+        int essential = 0;
+        long postings = 0;
+        long candidates = 0;
+        while (true){
+            double threshold = heap.threshold();
+            while (essential < n && prefix[essential + 1] * (1 + BOUND_SLACK) <= threshold){
+                essential++;
+            }
+            // The next window starts at the smallest document left among the essential terms
+            int windowStart = Integer.MAX_VALUE;
+            for (int i = essential; i < n; i++) {
+                if (position[i] < end[i]){
+                    windowStart = Math.min(windowStart, docs[position[i]]);
+                }
+            }
+            if (windowStart == Integer.MAX_VALUE){
+                break;
+            }
+            int windowEnd = (int) Math.min((long) windowStart + WINDOW, store.maxDoc());
+
+            // Where each term leaves the window; the essential postings in it bound the number of candidates.
+            // The documents before the window only contain non-essential terms, skip them
+            int essentialPostings = 0;
+            for (int i = 0; i < n; i++) {
+                if (i < essential){
+                    position[i] = advance(docs, position[i], end[i], windowStart);
+                }
+                windowPosition[i] = advance(docs, position[i], end[i], windowEnd);
+                if (i >= essential){
+                    essentialPostings += windowPosition[i] - position[i];
+                }
+            }
+
+            // Term-at-a-time over the essential terms and the non-essential terms too dense in the window to be worth
+            // searching, weakest first: the longest postings come first and the candidates end up mostly in doc id order
+            int touchedCount = 0;
+            for (int i = 0; i < n; i++) {
+                if (i >= essential || windowPosition[i] - position[i] <= GALLOP_RATIO * essentialPostings){
+                    touchedCount = accumulate(position[i], windowPosition[i], weight[i], scores, touched, touchedCount);
+                    postings += windowPosition[i] - position[i];
+                    position[i] = windowPosition[i];
+                }
+            }
+            candidates += touchedCount;
+
+            // The sparse non-essential terms left, strongest first: drop the candidates that cannot make it anymore
+            // (a dropped candidate is marked with a negative score), then look the term up for the ones left,
+            // galloping from one to the next instead of reading every posting of the window
+            int live = -1;
+            for (int i = essential - 1; i >= 0; i--) {
+                int p = position[i];
+                int e = windowPosition[i];
+                if (p == e){
+                    continue;
+                }
+                if (live < 0){
+                    // Candidates in doc id order, so the cursor only moves forward; a zero score is touched
+                    // again by the next posting, keep one copy
+                    Arrays.sort(touched, 0, touchedCount);
+                    live = 0;
+                    for (int t = 0; t < touchedCount; t++) {
+                        int doc = touched[t];
+                        if (scores[doc] > 0.0 && (live == 0 || liveDocs[live - 1] != doc)){
+                            liveDocs[live] = doc;
+                            norms[live++] = queryLength * store.length(doc);
+                        }
+                    }
+                }
+                double remaining = prefix[i + 1] * (1 + BOUND_SLACK);
+                double bar = threshold / (1 + BOUND_SLACK);
+                int kept = 0;
+                for (int t = 0; t < live; t++) {
+                    int doc = liveDocs[t];
+                    // score / norm + remaining <= threshold, without the division
+                    if (scores[doc] + remaining * norms[t] <= bar * norms[t]){
+                        scores[doc] = -1.0;
+                    }else {
+                        liveDocs[kept] = doc;
+                        norms[kept++] = norms[t];
+                    }
+                }
+                live = kept;
+                double queryWeight = weight[i];
+                for (int t = 0; t < live && p < e; t++) {
+                    int doc = liveDocs[t];
+                    p = advance(docs, p, e, doc);
+                    if (p < e && docs[p] == doc){
+                        scores[doc] += queryWeight * weights[p];
+                        postings++;
+                    }
+                }
+                position[i] = e;
+            }
+
+            for (int t = 0; t < touchedCount; t++) {
+                int doc = touched[t];
+                double score = scores[doc];
+                scores[doc] = 0.0;
+                double cosineSimilarity = score / (queryLength * store.length(doc));
+                // Filter unrelated (and dropped) documents
+                if (cosineSimilarity > 0.0 && heap.offer(doc, cosineSimilarity)){
+                    threshold = heap.threshold();
+                }
+            }
+        }
+        accumulators.offer(acc);
+        QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+        QueryMetrics.add(QueryMetrics.Counter.POSTINGS_SCORED, postings);
+        QueryMetrics.add(QueryMetrics.Counter.DOCUMENTS_TOUCHED, candidates);
+
+        start = QueryMetrics.start();
+        LinkedHashMap<Integer, Double> similarities = heap.drainDescending();
+        QueryMetrics.record(QueryMetrics.Stage.TOP_K, start);
+        return similarities;
+    }
+
+    /**
+     * Compute the top k Cosine Similarities of several queries at once, walking the postings of each distinct
+     * term a single time for the whole batch: every posting read is added to the accumulator of each query
+     * containing the term. The documents are processed in windows of doc ids, so the accumulators of the
+     * batch (one slot per query, the slots of a document side by side) stay in the cache.
+     * Each query gets the same documents and scores as {@link #search(QueryVector, int)}: its terms are still
+     * added in term id order.
+     * @param queryVectors the query vectors, resolved against the store's dictionary
+     * @param k how many results to keep per query
+     * @return the sorted Cosine Similarity map of each query, in the order of the query vectors
+     */
+    public List<LinkedHashMap<Integer, Double>> searchBatch(QueryVector[] queryVectors, int k){
+        int batch = queryVectors.length;
+        int entries = 0;
+        double[] queryLengths = new double[batch];
+        for (int slot = 0; slot < batch; slot++) {
+            checkDictionary(queryVectors[slot]);
+            entries += queryVectors[slot].size();
+            queryLengths[slot] = queryVectors[slot].length();
+        }
+        long start = QueryMetrics.start();
+        // Group the (query, term) pairs by term: term id in the high bits, pair index in the low bits
+        long[] pairs = new long[entries];
+        int[] pairQuery = new int[entries];
+        double[] pairWeight = new double[entries];
+        int e = 0;
+        for (int slot = 0; slot < batch; slot++) {
+            QueryVector queryVector = queryVectors[slot];
+            for (int q = 0; q < queryVector.size(); q++) {
+                pairs[e] = (long) queryVector.termId(q) << 32 | e;
+                pairQuery[e] = slot;
+                pairWeight[e] = queryVector.weight(q);
+                e++;
+            }
+        }
+        Arrays.sort(pairs);
+        // Per distinct term: its pairs, sorted by query, and a cursor in its postings
+        int[] termFirst = new int[entries + 1];
+        int[] querySlot = new int[entries];
+        double[] queryWeight = new double[entries];
+        int[] position = new int[entries];
+        int[] end = new int[entries];
+        int terms = 0;
+        for (int i = 0; i < entries; i++) {
+            int termId = (int) (pairs[i] >>> 32);
+            int pair = (int) pairs[i];
+            querySlot[i] = pairQuery[pair];
+            queryWeight[i] = pairWeight[pair];
+            if (i == 0 || termId != (int) (pairs[i - 1] >>> 32)){
+                termFirst[terms] = i;
+                position[terms] = offsets[termId];
+                end[terms] = offsets[termId + 1];
+                terms++;
+            }
+        }
+        termFirst[terms] = entries;
+
+        int window = Math.max(64, BATCH_SLOTS / Math.max(1, batch));
+        Accumulator acc = accumulators.poll();
+        if (acc == null){
+            acc = new Accumulator();
+        }
+        acc.ensureBatchCapacity(window, batch);
+        double[] scores = acc.batchScores;
+        boolean[] seen = acc.seen;
+        int[] touched = acc.touched;
+        ScoreHeap[] heaps = new ScoreHeap[batch];
+        for (int slot = 0; slot < batch; slot++) {
+            heaps[slot] = new ScoreHeap(k);
+        }
+        long postings = 0;
+        long candidates = 0;
+        while (true){
+            // The next window starts at the smallest document left among the terms
+            int windowStart = Integer.MAX_VALUE;
+            for (int t = 0; t < terms; t++) {
+                if (position[t] < end[t]){
+                    windowStart = Math.min(windowStart, docs[position[t]]);
+                }
+            }
+            if (windowStart == Integer.MAX_VALUE){
+                break;
+            }
+            int windowEnd = (int) Math.min((long) windowStart + window, store.maxDoc());
+
+            // Term-at-a-time over the distinct terms, each posting feeds every query of its term
+            int touchedCount = 0;
+            for (int t = 0; t < terms; t++) {
+                int first = termFirst[t];
+                int last = termFirst[t + 1];
+                int p = position[t];
+                int pe = end[t];
+                if (last - first == 1){
+                    // Term of a single query of the batch
+                    int slot = querySlot[first];
+                    double weight = queryWeight[first];
+                    for (; p < pe && docs[p] < windowEnd; p++) {
+                        int doc = docs[p] - windowStart;
+                        if (!seen[doc]){
+                            seen[doc] = true;
+                            touched[touchedCount++] = doc;
+                        }
+                        scores[doc * batch + slot] += weight * weights[p];
+                    }
+                }else {
+                    for (; p < pe && docs[p] < windowEnd; p++) {
+                        int doc = docs[p] - windowStart;
+                        if (!seen[doc]){
+                            seen[doc] = true;
+                            touched[touchedCount++] = doc;
+                        }
+                        int row = doc * batch;
+                        float weight = weights[p];
+                        for (int i = first; i < last; i++) {
+                            scores[row + querySlot[i]] += queryWeight[i] * weight;
+                        }
+                    }
+                }
+                postings += p - position[t];
+                position[t] = p;
+            }
+            candidates += touchedCount;
+
+            for (int i = 0; i < touchedCount; i++) {
+                int doc = touched[i];
+                seen[doc] = false;
+                int row = doc * batch;
+                double length = store.length(windowStart + doc);
+                for (int slot = 0; slot < batch; slot++) {
+                    double score = scores[row + slot];
+                    if (score == 0.0){
+                        continue;
+                    }
+                    scores[row + slot] = 0.0;
+                    double cosineSimilarity = score / (queryLengths[slot] * length);
+                    // Filter unrelated documents
+                    if (cosineSimilarity > 0.0){
+                        heaps[slot].offer(windowStart + doc, cosineSimilarity);
+                    }
+                }
+            }
+        }
+        accumulators.offer(acc);
+        QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+        QueryMetrics.add(QueryMetrics.Counter.POSTINGS_SCORED, postings);
+        QueryMetrics.add(QueryMetrics.Counter.DOCUMENTS_TOUCHED, candidates);
+
+        start = QueryMetrics.start();
+        List<LinkedHashMap<Integer, Double>> similarities = new ArrayList<>(batch);
+        for (ScoreHeap heap : heaps) {
+            similarities.add(heap.drainDescending());
+        }
+        QueryMetrics.record(QueryMetrics.Stage.TOP_K, start);
+        return similarities;
+    }
+
+    // Add the postings in [from, to) to the scores, recording the documents seen for the first time
+    private int accumulate(int from, int to, double queryWeight, double[] scores, int[] touched, int touchedCount){
+        for (int p = from; p < to; p++) {
+            int doc = docs[p];
+            if (scores[doc] == 0.0){
+                touched[touchedCount++] = doc;
+            }
+            scores[doc] += queryWeight * weights[p];
+        }
+        return touchedCount;
+    }
+
+    // First position in [from, to) whose document is at least target, galloping from the start of the range
+    private static int advance(int[] docs, int from, int to, int target){
+        if (from >= to || docs[from] >= target){
+            return from;
+        }
+        // docs[low] < target: double the step until a document at least target is passed
+        int low = from;
+        int step = 1;
+        while (low + step < to && docs[low + step] < target){
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(low + step, to);
+        int found = Arrays.binarySearch(docs, low + 1, high, target);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    private void checkDictionary(QueryVector queryVector){
+        if (queryVector.getDictionary() != store.getDictionary()){
+            throw new IllegalArgumentException("The query vector was not resolved against the dictionary of the store");
+        }
+    }
+
+    /**
+     * @param term the term to look up
+     * @return how many documents contain the term
+     */
+    public int docFreq(String term){
+        int termId = store.getDictionary().id(term);
+        return termId < 0 ? 0 : offsets[termId + 1] - offsets[termId];
+    }
+
+    public DocumentVectorStore getStore(){
+        return store;
+    }
+
+    public int getMaxDoc(){
+        return store.maxDoc();
+    }
+}
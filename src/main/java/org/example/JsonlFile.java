@@ -0,0 +1,145 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only, memory-mapped view of a JSON lines file.
+ * The file is mapped in chunks that always end right after a newline, so every line
+ * lives inside a single mapping and can be read at any time without a system call.
+ * Reads are absolute, several threads can share the same instance.
+ */
+public class JsonlFile implements AutoCloseable {
+
+    /**
+     * Callback for {@link #forEachLine}
+     */
+    public interface LineVisitor {
+        /**
+         * @param offset byte offset of the line in the file
+         * @param chunk the mapping holding the line
+         * @param start position of the line in the mapping
+         * @param length length of the line in bytes, without the newline
+         */
+        void visit(long offset, MappedByteBuffer chunk, int start, int length) throws IOException;
+    }
+
+    // Largest mapping, a single line must fit in it
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+
+    // The mappings and the file offset where each one starts
+    private final MappedByteBuffer[] chunks;
+    private final long[] chunkStarts;
+    // Bytes of each mapping that belong to it (up to and including its last newline)
+    private final int[] chunkLengths;
+
+    private JsonlFile(FileChannel channel, MappedByteBuffer[] chunks, long[] chunkStarts, int[] chunkLengths){
+        this.channel = channel;
+        this.chunks = chunks;
+        this.chunkStarts = chunkStarts;
+        this.chunkLengths = chunkLengths;
+    }
+
+    /**
+     * Map a JSON lines file
+     * @param path the file to map
+     * @return the mapped file
+     * @throws IOException if the file cannot be mapped or holds a line longer than a chunk
+     */
+    public static JsonlFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            List<MappedByteBuffer> chunks = new ArrayList<>();
+            List<Long> starts = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            long start = 0;
+            while (start < size){
+                int mapped = (int) Math.min(CHUNK_SIZE, size - start);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, mapped);
+                int length = mapped;
+                if (start + mapped < size){
+                    // Cut after the last newline, the partial line starts the next chunk
+                    length = lastNewline(chunk, mapped) + 1;
+                    if (length == 0){
+                        throw new IOException("Line longer than " + CHUNK_SIZE + " bytes in " + path);
+                    }
+                }
+                chunks.add(chunk);
+                starts.add(start);
+                lengths.add(length);
+                start += length;
+            }
+            return new JsonlFile(channel, chunks.toArray(new MappedByteBuffer[0]),
+                    starts.stream().mapToLong(Long::longValue).toArray(),
+                    lengths.stream().mapToInt(Integer::intValue).toArray());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Visit every non-empty line of the file in order
+     * @param visitor called once per line
+     * @throws IOException if the visitor fails
+     */
+    public void forEachLine(LineVisitor visitor) throws IOException {
+        for (int c = 0; c < chunks.length; c++) {
+            MappedByteBuffer chunk = chunks[c];
+            int end = chunkLengths[c];
+            int lineStart = 0;
+            for (int i = 0; i <= end; i++) {
+                if (i == end || chunk.get(i) == '\n'){
+                    int lineEnd = i;
+                    // Tolerate Windows line endings
+                    if (lineEnd > lineStart && chunk.get(lineEnd - 1) == '\r'){
+                        lineEnd--;
+                    }
+                    if (lineEnd > lineStart){
+                        visitor.visit(chunkStarts[c] + lineStart, chunk, lineStart, lineEnd - lineStart);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a line out of the mapping
+     * @param offset byte offset of the line, as given to the visitor
+     * @param length length of the line
+     * @return the bytes of the line
+     */
+    public byte[] line(long offset, int length){
+        int c = Arrays.binarySearch(chunkStarts, offset);
+        if (c < 0){
+            c = -c - 2;
+        }
+        byte[] bytes = new byte[length];
+        chunks[c].get((int) (offset - chunkStarts[c]), bytes);
+        return bytes;
+    }
+
+    private static int lastNewline(MappedByteBuffer chunk, int length){
+        for (int i = length - 1; i >= 0; i--) {
+            if (chunk.get(i) == '\n'){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
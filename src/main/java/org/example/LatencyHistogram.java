@@ -0,0 +1,93 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HdrHistogram-style log-linear buckets:
+ * each power of two is split in 32 linear sub-buckets, so any recorded value is
+ * known within ~3% while the whole range (1ns to hours) fits in about a thousand counters.
+ */
+public class LatencyHistogram {
+
+    // Sub-buckets per power of two = 2^SUB_BITS
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << SUB_BITS;
+
+    // Enough buckets for values up to 2^62 nanoseconds
+    private static final int BUCKETS = (62 - SUB_BITS + 2) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency to record, negative values count as 0
+     */
+    public void record(long nanos){
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count(){
+        return total.sum();
+    }
+
+    public long sum(){
+        return sum.sum();
+    }
+
+    public long max(){
+        return max.get();
+    }
+
+    public double mean(){
+        long n = count();
+        return n == 0 ? 0.0 : (double) sum() / n;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the upper bound of the bucket holding the quantile, 0 if nothing was recorded
+     */
+    public long valueAt(double quantile){
+        long n = count();
+        if (n == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank){
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    public void reset(){
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int index(long value){
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return bucket * HALF + (int) (value >>> bucket);
+    }
+
+    static long upperBound(int index){
+        int bucket = Math.max(0, index / HALF - 1);
+        long sub = index - (long) bucket * HALF;
+        return ((sub + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,259 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Term-at-a-time view of the document vectors of several fields (e.g. title, text and combined),
+ * scored together as a weighted cosine: score(d, q) = sum over the fields of weight(f) * cos_f(d, q),
+ * with the field weights scaled to add up to 1.
+ * The postings of every field are packed side by side with their weight already divided by the
+ * document's length in that field, so a query walks the postings of its terms in each field once,
+ * into a single accumulator and a single top k selection.
+ *
+ * Configure with -Dvector.fields=title:0.3,text:0.7 (a field without a weight counts 1).
+ */
+public class MultiFieldIndex {
+
+    // Reusable score accumulator, used by one query at a time
+    private static final class Accumulator {
+        private double[] scores = new double[0];
+        // Documents with a non-zero score, so resetting does not touch the whole array
+        private int[] touched = new int[0];
+
+        private void ensureCapacity(int maxDoc){
+            if (scores.length < maxDoc){
+                scores = new double[maxDoc];
+                touched = new int[maxDoc];
+            }
+        }
+    }
+
+    private final String[] fields;
+
+    // Weight of each field, adding up to 1
+    private final double[] fieldWeights;
+
+    // idf of each field, and the dictionary of each field's postings
+    private final IdfTable[] idfTables;
+    private final TermDictionary[] dictionaries;
+
+    // Per field: start of each term's postings, then the document id and the normalized weight of every posting
+    private final int[][] offsets;
+    private final int[][] docs;
+    private final float[][] weights;
+
+    private final int maxDoc;
+
+    // Idle accumulators, shared instead of thread-local so short-lived virtual threads reuse them too
+    private final ConcurrentLinkedQueue<Accumulator> accumulators = new ConcurrentLinkedQueue<>();
+
+    private MultiFieldIndex(String[] fields, double[] fieldWeights, IdfTable[] idfTables, TermDictionary[] dictionaries,
+                            int[][] offsets, int[][] docs, float[][] weights, int maxDoc){
+        this.fields = fields;
+        this.fieldWeights = fieldWeights;
+        this.idfTables = idfTables;
+        this.dictionaries = dictionaries;
+        this.offsets = offsets;
+        this.docs = docs;
+        this.weights = weights;
+        this.maxDoc = maxDoc;
+    }
+
+    /**
+     * Parse the fields to search and their weights
+     * @param spec comma separated field[:weight] list, e.g. "title:0.3,text:0.7"
+     * @return the weight of each field, in the order of the list
+     */
+    public static LinkedHashMap<String, Double> parseFields(String spec){
+        LinkedHashMap<String, Double> fieldWeights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()){
+                continue;
+            }
+            int colon = part.indexOf(':');
+            String field = colon < 0 ? part : part.substring(0, colon).trim();
+            double weight;
+            try {
+                weight = colon < 0 ? 1.0 : Double.parseDouble(part.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight of field " + field + ": " + part);
+            }
+            if (!(weight >= 0.0)){
+                throw new IllegalArgumentException("Field weights must not be negative: " + part);
+            }
+            fieldWeights.put(field, weight);
+        }
+        if (fieldWeights.isEmpty()){
+            throw new IllegalArgumentException("No field to search: " + spec);
+        }
+        return fieldWeights;
+    }
+
+    /**
+     * Invert the packed document vectors of several fields
+     * @param fieldWeights the weight of each field
+     * @param stores the packed document vector of each field, in the order of the weights
+     * @param idfTables the idf of each field, in the order of the weights
+     * @return the multi-field index
+     */
+    public static MultiFieldIndex build(LinkedHashMap<String, Double> fieldWeights, DocumentVectorStore[] stores,
+                                        IdfTable[] idfTables){
+        int n = fieldWeights.size();
+        if (stores.length != n || idfTables.length != n){
+            throw new IllegalArgumentException("Expected one store and one idf table per field");
+        }
+        String[] fields = fieldWeights.keySet().toArray(new String[0]);
+        double total = 0.0;
+        for (double weight : fieldWeights.values()) {
+            total += weight;
+        }
+        if (total <= 0.0){
+            throw new IllegalArgumentException("At least one field weight must be positive");
+        }
+        double[] scaled = new double[n];
+        TermDictionary[] dictionaries = new TermDictionary[n];
+        int[][] offsets = new int[n][];
+        int[][] docs = new int[n][];
+        float[][] weights = new float[n][];
+        int maxDoc = 0;
+        for (int f = 0; f < n; f++) {
+            DocumentVectorStore store = stores[f];
+            scaled[f] = fieldWeights.get(fields[f]) / total;
+            dictionaries[f] = store.getDictionary();
+            maxDoc = Math.max(maxDoc, store.maxDoc());
+
+            int numTerms = store.getDictionary().size();
+            // First pass: count the postings of each term
+            int[] termOffsets = new int[numTerms + 1];
+            for (int i = 0; i < store.size(); i++) {
+                termOffsets[store.termId(i) + 1]++;
+            }
+            for (int t = 0; t < numTerms; t++) {
+                termOffsets[t + 1] += termOffsets[t];
+            }
+            // Second pass: fill the postings in ascending doc id order, with the document length folded in
+            int[] position = Arrays.copyOf(termOffsets, numTerms);
+            int[] fieldDocs = new int[store.size()];
+            float[] fieldWeightsOfPostings = new float[store.size()];
+            for (int docId = 0; docId < store.maxDoc(); docId++) {
+                double length = store.length(docId);
+                for (int i = store.start(docId); i < store.end(docId); i++) {
+                    int p = position[store.termId(i)]++;
+                    fieldDocs[p] = docId;
+                    fieldWeightsOfPostings[p] = (float) (store.weight(i) / length);
+                }
+            }
+            offsets[f] = termOffsets;
+            docs[f] = fieldDocs;
+            weights[f] = fieldWeightsOfPostings;
+        }
+        return new MultiFieldIndex(fields, scaled, idfTables, dictionaries, offsets, docs, weights, maxDoc);
+    }
+
+    /**
+     * Compute the top k weighted Cosine Similarities, walking the postings of the query terms of every field once
+     * @param queryVectors the query vector of each field, resolved against {@link #getDictionaries()}
+     * @param k how many results to keep
+     * @return the sorted similarity map where the key is document id and the value is the weighted similarity
+     */
+    public LinkedHashMap<Integer, Double> search(QueryVector[] queryVectors, int k){
+        Accumulator acc = accumulators.poll();
+        if (acc == null){
+            acc = new Accumulator();
+        }
+        acc.ensureCapacity(maxDoc);
+        double[] scores = acc.scores;
+        int[] touched = acc.touched;
+        int touchedCount = 0;
+        long postings = 0;
+        long start = QueryMetrics.start();
+
+        for (int f = 0; f < fields.length; f++) {
+            QueryVector queryVector = queryVectors[f];
+            if (queryVector.getDictionary() != dictionaries[f]){
+                throw new IllegalArgumentException("The query vector was not resolved against the dictionary of field: "
+                        + fields[f]);
+            }
+            if (queryVector.length() == 0.0 || fieldWeights[f] == 0.0){
+                continue;
+            }
+            // The query length and the field weight are the same for every posting of the field
+            double scale = fieldWeights[f] / queryVector.length();
+            int[] termOffsets = offsets[f];
+            int[] fieldDocs = docs[f];
+            float[] fieldWeightsOfPostings = weights[f];
+            for (int q = 0; q < queryVector.size(); q++) {
+                double queryWeight = queryVector.weight(q) * scale;
+                int termId = queryVector.termId(q);
+                postings += termOffsets[termId + 1] - termOffsets[termId];
+                for (int i = termOffsets[termId]; i < termOffsets[termId + 1]; i++) {
+                    int doc = fieldDocs[i];
+                    if (scores[doc] == 0.0){
+                        touched[touchedCount++] = doc;
+                    }
+                    scores[doc] += queryWeight * fieldWeightsOfPostings[i];
+                }
+            }
+        }
+        QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+        QueryMetrics.add(QueryMetrics.Counter.POSTINGS_SCORED, postings);
+        QueryMetrics.add(QueryMetrics.Counter.DOCUMENTS_TOUCHED, touchedCount);
+
+        start = QueryMetrics.start();
+        // Select the best k with a bounded min-heap and reset the accumulator on the way
+        ScoreHeap heap = new ScoreHeap(k);
+        for (int i = 0; i < touchedCount; i++) {
+            int doc = touched[i];
+            double similarity = scores[doc];
+            scores[doc] = 0.0;
+            // Filter unrelated documents
+            if (similarity > 0.0){
+                heap.offer(doc, similarity);
+            }
+        }
+        accumulators.offer(acc);
+        LinkedHashMap<Integer, Double> similarities = heap.drainDescending();
+        QueryMetrics.record(QueryMetrics.Stage.TOP_K, start);
+        return similarities;
+    }
+
+    public String[] getFields(){
+        return fields;
+    }
+
+    public IdfTable[] getIdfTables(){
+        return idfTables;
+    }
+
+    public TermDictionary[] getDictionaries(){
+        return dictionaries;
+    }
+
+    public int getMaxDoc(){
+        return maxDoc;
+    }
+
+    /**
+     * @return total number of postings over all the fields
+     */
+    public long size(){
+        long size = 0;
+        for (int[] fieldDocs : docs) {
+            size += fieldDocs.length;
+        }
+        return size;
+    }
+
+    /**
+     * @return approximate heap usage of the postings and dictionaries in bytes
+     */
+    public long ramBytesUsed(){
+        long bytes = 0;
+        for (int f = 0; f < fields.length; f++) {
+            bytes += dictionaries[f].ramBytesUsed() + 4L * offsets[f].length + 8L * docs[f].length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,233 @@
+package org.example;
+
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermVectors;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the packed document vectors of a reader on several cores.
+ * The documents are split by segment ({@link LeafReaderContext}) and by doc id range into chunks; each
+ * chunk task opens its own {@link TermVectors} on its segment and skips the deleted documents.
+ * A first pass counts the postings of every document, one task per segment, which gives every row its place:
+ * the final arrays are allocated once, at their exact size. A second pass weighs the rows straight into place,
+ * every chunk writing its own range, so the rows are never held in a second copy and the peak heap is the one
+ * of the final store. The counting pass only walks the doc ids of the postings; the term vectors, far more
+ * expensive to decode, are read once.
+ * The idf tables must come from the same reader (or one containing it, e.g. the MultiReader over the
+ * shards), so every term of a term vector already has an id and the shared dictionaries are only read.
+ *
+ * Configure with -Dvector.build.threads=N (default: number of cores).
+ */
+public class ParallelStoreBuild {
+
+    // Documents per task: enough to amortize a task and a term vectors reader, few enough to balance the cores
+    private static final int CHUNK_SIZE = 1024;
+
+    // A doc id range of one segment
+    private static final class Chunk {
+        private final LeafReaderContext leaf;
+        // Range of the chunk, in doc ids of the segment
+        private final int from;
+        private final int to;
+
+        private Chunk(LeafReaderContext leaf, int from, int to){
+            this.leaf = leaf;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private ParallelStoreBuild(){
+    }
+
+    /**
+     * @return the number of threads configured by -Dvector.build.threads, at least 1
+     */
+    public static int threadsFromSystemProperties(){
+        return Math.max(1, Integer.getInteger("vector.build.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Build the packed document vector of one field
+     * @param reader the reader to read the term vectors from
+     * @param field the (Lucene) field to construct the vector of
+     * @param idfTable the idf of the field, its dictionary gives the term ids of the store
+     * @param threads how many threads to build with, 1 to build on the calling thread
+     * @return the packed document vector, one row per doc id of the reader (empty for the deleted documents)
+     */
+    public static DocumentVectorStore build(IndexReader reader, String field, IdfTable idfTable, int threads){
+        return build(reader, new String[]{field}, new IdfTable[]{idfTable}, threads)[0];
+    }
+
+    /**
+     * Build the packed document vectors of several fields, reading each document's term vectors once
+     * @param reader the reader to read the term vectors from
+     * @param fields the (Lucene) fields to construct the vectors of
+     * @param idfTables the idf of each field, their dictionaries give the term ids of the stores
+     * @param threads how many threads to build with, 1 to build on the calling thread
+     * @return the packed document vector of each field, in the order of the fields
+     */
+    public static DocumentVectorStore[] build(IndexReader reader, String[] fields, IdfTable[] idfTables, int threads){
+        List<Chunk> chunks = new ArrayList<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            int maxDoc = leaf.reader().maxDoc();
+            for (int from = 0; from < maxDoc; from += CHUNK_SIZE) {
+                chunks.add(new Chunk(leaf, from, Math.min(maxDoc, from + CHUNK_SIZE)));
+            }
+        }
+        int maxDoc = reader.maxDoc();
+        int n = fields.length;
+        int[][] offsets = new int[n][maxDoc + 1];
+        float[][] lengths = new float[n][maxDoc];
+        int[][] termIds = new int[n][];
+        float[][] weights = new float[n][];
+
+        List<Callable<Void>> count = new ArrayList<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            count.add(() -> {
+                count(leaf, fields, offsets);
+                return null;
+            });
+        }
+        List<Callable<Void>> weigh = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            weigh.add(() -> {
+                weigh(chunk, fields, idfTables, offsets, termIds, weights, lengths);
+                return null;
+            });
+        }
+
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            // Count the postings of every document
+            run(pool, count);
+            // Every row goes right after the previous one, the rows follow the doc ids
+            for (int f = 0; f < n; f++) {
+                long size = 0;
+                for (int doc = 0; doc < maxDoc; doc++) {
+                    size += offsets[f][doc + 1];
+                    if (size > Integer.MAX_VALUE){
+                        throw new IllegalStateException("Too many postings in field " + fields[f] + ": " + size);
+                    }
+                    offsets[f][doc + 1] = (int) size;
+                }
+                termIds[f] = new int[(int) size];
+                weights[f] = new float[(int) size];
+            }
+            // Weigh the rows into place
+            run(pool, weigh);
+        } finally {
+            if (pool != null){
+                pool.shutdown();
+            }
+        }
+
+        DocumentVectorStore[] stores = new DocumentVectorStore[n];
+        for (int f = 0; f < n; f++) {
+            stores[f] = new DocumentVectorStore(fields[f], idfTables[f].getDictionary(), offsets[f],
+                    termIds[f], weights[f], lengths[f]);
+        }
+        return stores;
+    }
+
+    // Count the postings of the live documents of a segment, each one in the offset slot after its document.
+    // The term vector of a document holds the terms indexed for it, so the postings give the sizes of the
+    // rows without decoding the term vectors twice
+    private static void count(LeafReaderContext leaf, String[] fields, int[][] offsets) throws IOException {
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        for (int f = 0; f < fields.length; f++) {
+            Terms terms = leaf.reader().terms(fields[f]);
+            if (terms == null){
+                continue;
+            }
+            TermsEnum iterator = terms.iterator();
+            PostingsEnum postings = null;
+            while (iterator.next() != null){
+                postings = iterator.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)){
+                        offsets[f][leaf.docBase + doc + 1]++;
+                    }
+                }
+            }
+        }
+    }
+
+    // Weigh the rows of the live documents of a chunk straight into their range of the final arrays
+    private static void weigh(Chunk chunk, String[] fields, IdfTable[] idfTables, int[][] offsets,
+                              int[][] termIds, float[][] weights, float[][] lengths) throws IOException {
+        TermVectors termVectors = chunk.leaf.reader().termVectors();
+        Bits liveDocs = chunk.leaf.reader().getLiveDocs();
+        // Scratch row, reused for every document and field of the chunk
+        DocumentVectorStore.Row row = new DocumentVectorStore.Row();
+        for (int doc = chunk.from; doc < chunk.to; doc++) {
+            if (liveDocs != null && !liveDocs.get(doc)){
+                continue;
+            }
+            Fields documentFields = termVectors.get(doc);
+            if (documentFields == null){
+                continue;
+            }
+            int docId = chunk.leaf.docBase + doc;
+            for (int f = 0; f < fields.length; f++) {
+                Terms terms = documentFields.terms(fields[f]);
+                if (terms == null){
+                    continue;
+                }
+                Vector.weighRow(terms, idfTables[f], idfTables[f].getDictionary(), row);
+                int start = offsets[f][docId];
+                if (row.size() != offsets[f][docId + 1] - start){
+                    throw new IllegalStateException("The term vector of document " + docId + " in field " + fields[f]
+                            + " does not match its postings, was the field indexed without term vectors?");
+                }
+                lengths[f][docId] = row.copyTo(termIds[f], weights[f], start);
+            }
+        }
+    }
+
+    private static void run(ForkJoinPool pool, List<Callable<Void>> tasks){
+        try {
+            if (pool == null){
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw failure(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the document vectors", e);
+        } catch (Exception e) {
+            throw failure(e);
+        }
+    }
+
+    private static RuntimeException failure(Throwable cause){
+        if (cause instanceof IOException io){
+            return new UncheckedIOException("Unable to read the term vectors", io);
+        }
+        if (cause instanceof RuntimeException runtime){
+            return runtime;
+        }
+        return new IllegalStateException("Unable to build the document vectors", cause);
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The relevance judgements of test.csv, loaded once and shared (read-only) by every query.
+ */
+public class Qrels {
+
+    private static volatile Qrels shared;
+
+    // Query-id -> relevant corpus-ids, in file order
+    private final Map<String, List<String>> relevant;
+
+    private Qrels(Map<String, List<String>> relevant){
+        this.relevant = relevant;
+    }
+
+    /**
+     * @return the judgements of src/main/java/test.csv, loaded on first use
+     */
+    public static Qrels shared(){
+        Qrels qrels = shared;
+        if (qrels == null){
+            synchronized (Qrels.class){
+                qrels = shared;
+                if (qrels == null){
+                    qrels = load(Paths.get("src/main/java/test.csv"));
+                    shared = qrels;
+                }
+            }
+        }
+        return qrels;
+    }
+
+    /**
+     * Load a qrels file: a header line, then query-id, corpus-id and score separated by white space
+     * @param path the qrels file
+     * @return the judgements, empty if the file cannot be read
+     */
+    public static Qrels load(Path path){
+        Map<String, List<String>> relevant = new HashMap<>();
+        try (BufferedReader br = Files.newBufferedReader(path)) {
+            // Ignore the first line
+            String line = br.readLine();
+            while ((line = br.readLine()) != null) {
+                // Trim the tab and space
+                String[] columns = line.trim().split("\\s+");
+                if (columns.length >= 2){
+                    relevant.computeIfAbsent(columns[0], k -> new ArrayList<>(1)).add(columns[1]);
+                }
+            }
+        } catch (IOException e) {
+            return new Qrels(Collections.emptyMap());
+        }
+        return new Qrels(relevant);
+    }
+
+    /**
+     * The answer of a query, the last judgement wins like in {@link Vector#fetchAnswer()}
+     * @param queryId the query-id
+     * @return the corpus-id of the answer, null if the query is not judged
+     */
+    public String answer(String queryId){
+        List<String> ids = relevant.get(queryId);
+        return ids == null ? null : ids.get(ids.size() - 1);
+    }
+
+    /**
+     * @param queryId the query-id
+     * @return every relevant corpus-id of the query
+     */
+    public List<String> relevant(String queryId){
+        return relevant.getOrDefault(queryId, Collections.emptyList());
+    }
+
+    /**
+     * @return the judged query-ids
+     */
+    public Set<String> queryIds(){
+        return Collections.unmodifiableSet(relevant.keySet());
+    }
+}
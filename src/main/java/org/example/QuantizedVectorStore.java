@@ -0,0 +1,224 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Exhaustive (brute-force) scoring on a compact copy of a {@link DocumentVectorStore}: the float weight of
+ * every posting is quantized to an int8 or a float16. Only the term ids, row offsets and dictionary of the store
+ * are kept (shared, see {@link #getStore()}), so its float weights can be collected once it is quantized.
+ * Each document keeps a single float: its int8 scale divided by its precomputed length, so the cosine of a
+ * document is one dot product times that factor and nothing is re-summed per query.
+ * The query is scattered into a dense array indexed by term id, and the int8 dot product gathers it with the
+ * SIMD kernel of {@link VectorKernel} when the jdk.incubator.vector module is present.
+ *
+ * Configure with -Dvector.quantized=int8|float16 (default: off, score the float store).
+ */
+public class QuantizedVectorStore {
+
+    public enum Encoding {
+        // One signed byte per weight, scaled per document by the largest weight of the row
+        INT8(1),
+        // IEEE half precision, no scale needed
+        FLOAT16(2);
+
+        private final int bytesPerWeight;
+
+        Encoding(int bytesPerWeight){
+            this.bytesPerWeight = bytesPerWeight;
+        }
+
+        public int bytesPerWeight(){
+            return bytesPerWeight;
+        }
+
+        /**
+         * @return the encoding set by -Dvector.quantized, null if quantized scoring is off
+         */
+        public static Encoding fromSystemProperties(){
+            String name = System.getProperty("vector.quantized");
+            return name == null || name.isEmpty() ? null : fromName(name);
+        }
+
+        /**
+         * @param name int8 or float16, in any case
+         * @return the encoding
+         */
+        public static Encoding fromName(String name){
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown encoding, expected int8 or float16: " + name);
+            }
+        }
+    }
+
+    // Only touch the SIMD kernel (and the incubator classes) when the module is there and has an int8 shape
+    private static final boolean SIMD = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && VectorKernel.hasInt8();
+
+    // The rows of the quantized store, without their float weights
+    private final DocumentVectorStore store;
+
+    private final Encoding encoding;
+
+    // Quantized weight of every posting, in the order of the store; only the one of the encoding is set
+    private final byte[] int8Weights;
+    private final short[] float16Weights;
+
+    // Per document: int8 scale / Euclidean length (1 / length for float16), 0 for an empty document
+    private final float[] factors;
+
+    // Idle dense query arrays, shared instead of thread-local so short-lived virtual threads reuse them too
+    private final ConcurrentLinkedQueue<float[]> queries = new ConcurrentLinkedQueue<>();
+
+    private QuantizedVectorStore(DocumentVectorStore store, Encoding encoding, byte[] int8Weights,
+                                 short[] float16Weights, float[] factors){
+        this.store = store;
+        this.encoding = encoding;
+        this.int8Weights = int8Weights;
+        this.float16Weights = float16Weights;
+        this.factors = factors;
+    }
+
+    /**
+     * Quantize the weights of a store
+     * @param store the packed document vector
+     * @param encoding how to encode the weights
+     * @return the quantized store, sharing the term ids, offsets and dictionary of the store but not its weights
+     */
+    public static QuantizedVectorStore build(DocumentVectorStore store, Encoding encoding){
+        store.requireWeights();
+        int maxDoc = store.maxDoc();
+        float[] factors = new float[maxDoc];
+        byte[] int8Weights = encoding == Encoding.INT8 ? new byte[store.size()] : null;
+        short[] float16Weights = encoding == Encoding.FLOAT16 ? new short[store.size()] : null;
+        for (int docId = 0; docId < maxDoc; docId++) {
+            float length = store.length(docId);
+            int start = store.start(docId);
+            int end = store.end(docId);
+            if (length == 0.0f){
+                continue;
+            }
+            if (encoding == Encoding.INT8){
+                float max = 0.0f;
+                for (int i = start; i < end; i++) {
+                    max = Math.max(max, Math.abs(store.weight(i)));
+                }
+                float scale = max / 127.0f;
+                for (int i = start; i < end; i++) {
+                    int8Weights[i] = (byte) Math.round(store.weight(i) / scale);
+                }
+                factors[docId] = scale / length;
+            }else {
+                for (int i = start; i < end; i++) {
+                    float16Weights[i] = Float.floatToFloat16(store.weight(i));
+                }
+                factors[docId] = 1.0f / length;
+            }
+        }
+        return new QuantizedVectorStore(store.withoutWeights(), encoding, int8Weights, float16Weights, factors);
+    }
+
+    /**
+     * Compute the top k Cosine Similarities by scoring every document
+     * @param queryVector the query vector, resolved against the dictionary of the store
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity
+     */
+    public LinkedHashMap<Integer, Double> search(QueryVector queryVector, int k){
+        if (queryVector.getDictionary() != store.getDictionary()){
+            throw new IllegalArgumentException("The query vector was not resolved against the dictionary of the store");
+        }
+        ScoreHeap heap = new ScoreHeap(k);
+        if (queryVector.length() == 0.0){
+            return heap.drainDescending();
+        }
+        float[] dense = queries.poll();
+        if (dense == null || dense.length < store.getDictionary().size()){
+            dense = new float[store.getDictionary().size()];
+        }
+        for (int q = 0; q < queryVector.size(); q++) {
+            dense[queryVector.termId(q)] = (float) queryVector.weight(q);
+        }
+        long start = QueryMetrics.start();
+        int[] termIds = store.termIds();
+        double inverseQueryLength = 1.0 / queryVector.length();
+        for (int docId = 0; docId < factors.length; docId++) {
+            float factor = factors[docId];
+            if (factor == 0.0f){
+                continue;
+            }
+            double dot = encoding == Encoding.INT8
+                    ? dotInt8(dense, termIds, store.start(docId), store.end(docId))
+                    : dotFloat16(dense, termIds, store.start(docId), store.end(docId));
+            double similarity = dot * factor * inverseQueryLength;
+            // Filter unrelated documents
+            if (similarity > 0.0){
+                heap.offer(docId, similarity);
+            }
+        }
+        QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+        QueryMetrics.add(QueryMetrics.Counter.DOCUMENTS_TOUCHED, factors.length);
+        QueryMetrics.add(QueryMetrics.Counter.POSTINGS_SCORED, store.size());
+
+        // Clear the query terms only, the array goes back to the pool zeroed
+        for (int q = 0; q < queryVector.size(); q++) {
+            dense[queryVector.termId(q)] = 0.0f;
+        }
+        queries.offer(dense);
+        start = QueryMetrics.start();
+        LinkedHashMap<Integer, Double> similarities = heap.drainDescending();
+        QueryMetrics.record(QueryMetrics.Stage.TOP_K, start);
+        return similarities;
+    }
+
+    private double dotInt8(float[] query, int[] termIds, int from, int to){
+        if (SIMD){
+            return VectorKernel.dotInt8(query, termIds, int8Weights, from, to);
+        }
+        float dot = 0.0f;
+        for (int i = from; i < to; i++) {
+            dot += query[termIds[i]] * int8Weights[i];
+        }
+        return dot;
+    }
+
+    // The Vector API of Java 21 has no float16 conversion, decode one weight at a time
+    private double dotFloat16(float[] query, int[] termIds, int from, int to){
+        float dot = 0.0f;
+        for (int i = from; i < to; i++) {
+            dot += query[termIds[i]] * Float.float16ToFloat(float16Weights[i]);
+        }
+        return dot;
+    }
+
+    /**
+     * @return the rows of the quantized store without their float weights: searched with the dictionary
+     * of the original store, but only scored through this quantized copy
+     */
+    public DocumentVectorStore getStore(){
+        return store;
+    }
+
+    /**
+     * @param other a store, with or without its float weights
+     * @return true if this is the quantized copy of the rows of the store
+     */
+    public boolean quantizes(DocumentVectorStore other){
+        return other.termIds() == store.termIds();
+    }
+
+    public Encoding getEncoding(){
+        return encoding;
+    }
+
+    /**
+     * @return approximate heap usage in bytes of everything quantized scoring keeps: the quantized weights,
+     * the per-document factors and the term ids, offsets, lengths and dictionary of the rows
+     */
+    public long ramBytesUsed(){
+        return store.ramBytesUsed() + (long) encoding.bytesPerWeight() * store.size() + 4L * factors.length;
+    }
+}
@@ -0,0 +1,224 @@
+package org.example;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Turns query text into normalized tf_idf {@link QueryVector}s without allocating on the way.
+ * The analyzer already keeps one token stream per thread; the UTF-8 bytes of the tokens are copied
+ * into a reused buffer, looked up in the dictionaries as they are, and counted by term id in a small
+ * open-addressing table. The buffer and the counting table are pooled, and the caller passes the
+ * vector to fill, so queries on short-lived virtual threads reuse them too.
+ * A query is tokenized once, whatever the number of fields it is resolved against.
+ * Only tokens missing from a dictionary are copied again, they are rare in practice.
+ */
+public class QueryAnalyzer {
+
+    // Scratch space of one query at a time
+    private static final class Scratch {
+        // UTF-8 bytes of the tokens of the query, back to back
+        private byte[] tokenBytes = new byte[256];
+        private int[] tokenEnds = new int[32];
+        private int tokenCount;
+        private final BytesRef token = new BytesRef();
+        // Term id -> entry of the vector + 1, 0 marks a free slot
+        private int[] slots = new int[64];
+        // idf table id of each entry of the vector
+        private int[] idfIds = new int[16];
+        // Tokens missing from the dictionary and how many times each one occurs; the pool holding their bytes
+        // is reset with its first block kept, BytesRefHash.clear(false) alone would leave the bytes behind
+        private final ByteBlockPool missingBytes = new ByteBlockPool(new ByteBlockPool.DirectAllocator());
+        private final BytesRefHash missing = new BytesRefHash(missingBytes);
+        private int[] missingCounts = new int[4];
+        private final BytesRef scratchTerm = new BytesRef();
+    }
+
+    private final Analyzer analyzer;
+
+    // Idle scratch spaces, shared instead of thread-local so short-lived virtual threads reuse them too
+    private final ConcurrentLinkedQueue<Scratch> scratches = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param analyzer same analyzer as the Indexer
+     */
+    public QueryAnalyzer(Analyzer analyzer){
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Analyze a query into a new vector
+     * @param query the query text
+     * @param idfTable the idf of the field searched
+     * @param dictionary the dictionary of the store to search, gives the term ids of the vector
+     * @return the normalized query vector, sorted by term id
+     */
+    public QueryVector analyze(String query, IdfTable idfTable, TermDictionary dictionary){
+        return analyze(query, idfTable, dictionary, new QueryVector());
+    }
+
+    /**
+     * Analyze a query into a vector of the caller, e.g. one reused from query to query
+     * @param query the query text
+     * @param idfTable the idf of the field searched
+     * @param dictionary the dictionary of the store to search, gives the term ids of the vector
+     * @param vector the vector to overwrite
+     * @return the vector, normalized and sorted by term id
+     */
+    public QueryVector analyze(String query, IdfTable idfTable, TermDictionary dictionary, QueryVector vector){
+        Scratch s = acquire();
+        try {
+            tokenize(s, query);
+            return resolve(s, vector, idfTable, dictionary);
+        } finally {
+            scratches.offer(s);
+        }
+    }
+
+    /**
+     * Analyze a query once and build its vector for several fields, into vectors of the caller
+     * @param query the query text
+     * @param idfTables the idf of each field searched
+     * @param dictionaries the dictionary of each field's store, gives the term ids of the vectors
+     * @param vectors the vectors to overwrite, one per table (the array may be longer)
+     * @return the vectors, the normalized query vector of each field in the order of the tables
+     */
+    public QueryVector[] analyze(String query, IdfTable[] idfTables, TermDictionary[] dictionaries, QueryVector[] vectors){
+        Scratch s = acquire();
+        try {
+            tokenize(s, query);
+            for (int i = 0; i < idfTables.length; i++) {
+                resolve(s, vectors[i], idfTables[i], dictionaries[i]);
+            }
+            return vectors;
+        } finally {
+            scratches.offer(s);
+        }
+    }
+
+    private Scratch acquire(){
+        Scratch s = scratches.poll();
+        return s == null ? new Scratch() : s;
+    }
+
+    // Copy the tokens of the query into the token buffer
+    private void tokenize(Scratch s, String query){
+        s.tokenCount = 0;
+        int size = 0;
+        try (TokenStream tokenStream = analyzer.tokenStream(null, query)) {
+            TermToBytesRefAttribute termAttribute = tokenStream.addAttribute(TermToBytesRefAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()){
+                BytesRef term = termAttribute.getBytesRef();
+                s.tokenBytes = ArrayUtil.grow(s.tokenBytes, size + term.length);
+                System.arraycopy(term.bytes, term.offset, s.tokenBytes, size, term.length);
+                size += term.length;
+                s.tokenEnds = ArrayUtil.grow(s.tokenEnds, s.tokenCount + 1);
+                s.tokenEnds[s.tokenCount++] = size;
+            }
+            tokenStream.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to analyze the query", e);
+        }
+        s.token.bytes = s.tokenBytes;
+    }
+
+    // Count the buffered tokens by term id of the dictionary and weigh them into the vector
+    private static QueryVector resolve(Scratch s, QueryVector vector, IdfTable idfTable, TermDictionary dictionary){
+        vector.clear(dictionary);
+        Arrays.fill(s.slots, 0);
+        if (s.missing.size() > 0){
+            // Clearing drops the start array, only pay for it after a query with missing tokens
+            s.missing.clear(false);
+            s.missingBytes.reset(false, true);
+            s.missing.reinit();
+        }
+        TermDictionary idfDictionary = idfTable.getDictionary();
+        BytesRef term = s.token;
+        int start = 0;
+        for (int t = 0; t < s.tokenCount; t++) {
+            term.offset = start;
+            term.length = s.tokenEnds[t] - start;
+            start = s.tokenEnds[t];
+            int termId = dictionary.id(term);
+            if (termId < 0){
+                int missing = s.missing.add(term);
+                if (missing >= 0){
+                    s.missingCounts = ArrayUtil.grow(s.missingCounts, missing + 1);
+                    s.missingCounts[missing] = 1;
+                }else {
+                    s.missingCounts[-missing - 1]++;
+                }
+                continue;
+            }
+            int slot = find(s, vector, termId);
+            int entry = s.slots[slot] - 1;
+            if (entry < 0){
+                entry = vector.add(termId, 0.0);
+                s.slots[slot] = entry + 1;
+                s.idfIds = ArrayUtil.grow(s.idfIds, entry + 1);
+                // The store usually shares the dictionary of the idf table, then the id is the same
+                s.idfIds[entry] = dictionary == idfDictionary ? termId : idfDictionary.id(term);
+                if (vector.size() * 2 > s.slots.length){
+                    rehash(s, vector);
+                }
+            }
+            vector.setWeight(entry, vector.weight(entry) + 1);
+        }
+
+        // tf_idf(t, q) = tf(t, q) * idf(t)
+        double length = 0.0;
+        for (int i = 0; i < vector.size(); i++) {
+            double tf_idf = vector.weight(i) * idfTable.idf(s.idfIds[i]);
+            vector.setWeight(i, tf_idf);
+            length += tf_idf * tf_idf;
+        }
+        double missingLength = 0.0;
+        for (int i = 0; i < s.missing.size(); i++) {
+            double tf_idf = s.missingCounts[i] * idfTable.idf(idfDictionary.id(s.missing.get(i, s.scratchTerm)));
+            missingLength += tf_idf * tf_idf;
+        }
+        length = Math.sqrt(length + missingLength);
+
+        // Optimization: normalize the vector so the term stays informative in long text
+        if (length == 0.0){
+            return vector;
+        }
+        double normalized = missingLength / (length * length);
+        for (int i = 0; i < vector.size(); i++) {
+            double weight = vector.weight(i) / length;
+            vector.setWeight(i, weight);
+            normalized += weight * weight;
+        }
+        vector.setLength(Math.sqrt(normalized));
+        vector.sort();
+        return vector;
+    }
+
+    // Slot of a term id: its own slot if counted already, otherwise the free slot where it goes
+    private static int find(Scratch s, QueryVector vector, int termId){
+        int mask = s.slots.length - 1;
+        int hash = termId * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (s.slots[slot] != 0 && vector.termId(s.slots[slot] - 1) != termId){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static void rehash(Scratch s, QueryVector vector){
+        s.slots = new int[s.slots.length * 2];
+        for (int i = 0; i < vector.size(); i++) {
+            s.slots[find(s, vector, vector.termId(i))] = i + 1;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs a batch of queries on a pool of threads and hands the results to a collector
+ * in the same order as the queries, so the results file looks exactly like a sequential run.
+ *
+ * Configure with -Dvector.pool=forkjoin|virtual (default forkjoin) and
+ * -Dvector.threads=N (default: number of cores).
+ */
+public class QueryExecutor implements AutoCloseable {
+
+    public enum PoolType {
+        // Fixed-size fork-join pool
+        FORK_JOIN,
+        // One virtual thread per query, the in-flight window bounds the concurrency
+        VIRTUAL_THREADS
+    }
+
+    private final ExecutorService pool;
+
+    // Maximum number of queries submitted but not yet collected
+    private final int window;
+
+    public QueryExecutor(PoolType type, int parallelism){
+        if (parallelism < 1){
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.pool = type == PoolType.VIRTUAL_THREADS
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : new ForkJoinPool(parallelism);
+        // Enough queued work to keep every worker busy while the collector waits on the oldest query
+        this.window = parallelism * 2;
+    }
+
+    /**
+     * @return the executor configured by the vector.pool and vector.threads system properties
+     */
+    public static QueryExecutor fromSystemProperties(){
+        String type = System.getProperty("vector.pool", "forkjoin");
+        int threads = Integer.getInteger("vector.threads", Runtime.getRuntime().availableProcessors());
+        return new QueryExecutor(type.equalsIgnoreCase("virtual")
+                ? PoolType.VIRTUAL_THREADS : PoolType.FORK_JOIN, threads);
+    }
+
+    /**
+     * Run every query (or batch of queries) and collect the results in query order
+     * @param queries the queries to run
+     * @param task computes the result of one query, must be safe to call from several threads
+     * @param collector receives the results one by one in query order, always on the calling thread
+     */
+    public <Q, T> void run(List<Q> queries, Function<Q, T> task, Consumer<T> collector){
+        Deque<Future<T>> inFlight = new ArrayDeque<>();
+        for (Q query : queries) {
+            if (inFlight.size() >= window){
+                collector.accept(await(inFlight.poll()));
+            }
+            inFlight.add(pool.submit(() -> task.apply(query)));
+        }
+        while (!inFlight.isEmpty()){
+            collector.accept(await(inFlight.poll()));
+        }
+    }
+
+    private static <T> T await(Future<T> future){
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a query", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Query failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close(){
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)){
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-stage latency histograms and counters of the query pipeline.
+ * Off by default; enable with -Dvector.metrics=true, the metrics are then dumped at the end of a run
+ * (see {@link #dumpFromSystemProperties()}) or on demand with {@link #toJson()} / {@link #toPrometheus()}.
+ * The switch is a static final constant, so when it is off the JIT removes the timing calls altogether.
+ *
+ * Usage on the query path:
+ *   long start = QueryMetrics.start();
+ *   ... stage ...
+ *   QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+ */
+public final class QueryMetrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("vector.metrics");
+
+    public enum Stage {
+        // Tokenize and weigh the query
+        QUERY_VECTOR,
+        // Look up the expected answer (qrels and corpus catalog)
+        ANSWER_LOOKUP,
+        // Accumulate the similarities
+        SCORING,
+        // Select and sort the best k
+        TOP_K,
+        // HNSW search of the query embedding (hybrid retrieval)
+        KNN,
+        // Look up the corpus-ids of the hits
+        EXTERNAL_IDS,
+        // Re-rank the hits by dense similarity
+        RERANK,
+        // Write the results of a query
+        WRITE,
+        // Whole query, from the query text to the ranked results
+        QUERY
+    }
+
+    public enum Counter {
+        QUERIES,
+        POSTINGS_SCORED,
+        DOCUMENTS_TOUCHED,
+        RESULTS_WRITTEN
+    }
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[Stage.values().length];
+    private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    private QueryMetrics(){
+    }
+
+    /**
+     * @return the start time of a stage, 0 when the metrics are off
+     */
+    public static long start(){
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Record the latency of a stage
+     * @param stage the stage
+     * @param start the value returned by {@link #start()} when the stage began
+     */
+    public static void record(Stage stage, long start){
+        if (ENABLED){
+            HISTOGRAMS[stage.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public static void add(Counter counter, long value){
+        if (ENABLED){
+            COUNTERS[counter.ordinal()].add(value);
+        }
+    }
+
+    public static LatencyHistogram histogram(Stage stage){
+        return HISTOGRAMS[stage.ordinal()];
+    }
+
+    public static long counter(Counter counter){
+        return COUNTERS[counter.ordinal()].sum();
+    }
+
+    public static void reset(){
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        for (LongAdder counter : COUNTERS) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * @return the histograms (in microseconds) and counters as a JSON object
+     */
+    public static String toJson(){
+        StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram h = histogram(stages[i]);
+            json.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"mean_us\": %.1f, \"p50_us\": %.1f, \"p90_us\": %.1f, "
+                            + "\"p99_us\": %.1f, \"p999_us\": %.1f, \"max_us\": %.1f}",
+                    name(stages[i]), h.count(), h.mean() / 1e3, h.valueAt(0.5) / 1e3, h.valueAt(0.9) / 1e3,
+                    h.valueAt(0.99) / 1e3, h.valueAt(0.999) / 1e3, h.max() / 1e3));
+        }
+        json.append("\n  },\n  \"counters\": {");
+        Counter[] counters = Counter.values();
+        for (int i = 0; i < counters.length; i++) {
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    \"").append(name(counters[i])).append("\": ").append(counter(counters[i]));
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    /**
+     * @return the histograms (as summaries in seconds) and counters in the Prometheus text format
+     */
+    public static String toPrometheus(){
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE vector_stage_latency_seconds summary\n");
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = histogram(stage);
+            for (double q : quantiles) {
+                text.append(String.format(Locale.ROOT, "vector_stage_latency_seconds{stage=\"%s\",quantile=\"%s\"} %.9f%n",
+                        name(stage), q, h.valueAt(q) / 1e9));
+            }
+            text.append(String.format(Locale.ROOT, "vector_stage_latency_seconds_sum{stage=\"%s\"} %.9f%n",
+                    name(stage), h.sum() / 1e9));
+            text.append(String.format(Locale.ROOT, "vector_stage_latency_seconds_count{stage=\"%s\"} %d%n",
+                    name(stage), h.count()));
+        }
+        for (Counter counter : Counter.values()) {
+            text.append("# TYPE vector_").append(name(counter)).append("_total counter\n");
+            text.append("vector_").append(name(counter)).append("_total ").append(counter(counter)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Write the metrics, JSON if the file name ends with .json, the Prometheus text format otherwise
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void dump(Path path) throws IOException {
+        Files.writeString(path, path.toString().endsWith(".json") ? toJson() : toPrometheus());
+    }
+
+    /**
+     * Print the JSON summary and write the metrics to the file given by -Dvector.metrics.out
+     * (default src/main/java/metrics.prom)
+     */
+    public static void dumpFromSystemProperties(){
+        System.out.print(toJson());
+        Path path = Path.of(System.getProperty("vector.metrics.out", "src/main/java/metrics.prom"));
+        try {
+            dump(path);
+            System.out.println("Metrics written to " + path);
+        } catch (IOException e) {
+            System.out.println("Unable to write the metrics to " + path);
+        }
+    }
+
+    private static String name(Enum<?> value){
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+/**
+ * The ranked results of a single query, ready to be written to the results file.
+ * Built on the query thread, written later by the (single) collector thread.
+ */
+public class QueryResult {
+
+    private final Querry query;
+
+    // Lucene doc id, corpus-id and score of each hit, best first
+    private final int[] docIds;
+    private final String[] corpusIds;
+    private final double[] scores;
+
+    // Run name written in the tag column
+    private final String tag;
+
+    // What the query printed to the console (answer lookup, found position)
+    private final String report;
+
+    public QueryResult(Querry query, int[] docIds, String[] corpusIds, double[] scores, String tag, String report) {
+        this.query = query;
+        this.docIds = docIds;
+        this.corpusIds = corpusIds;
+        this.scores = scores;
+        this.tag = tag;
+        this.report = report;
+    }
+
+    public Querry getQuery() {
+        return query;
+    }
+
+    public int size() {
+        return docIds.length;
+    }
+
+    public int getDocId(int rank) {
+        return docIds[rank];
+    }
+
+    public String getCorpusId(int rank) {
+        return corpusIds[rank];
+    }
+
+    public double getScore(int rank) {
+        return scores[rank];
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,170 @@
+package org.example;
+
+import org.apache.lucene.index.IndexReader;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of ranked query results.
+ * The key is the query vector (term ids and weights) plus the field and k, so repeated and reworded
+ * claims that analyze to the same vector skip the scoring and the stored fields.
+ * The cache belongs to one index reader and document store: it empties itself as soon as it is used
+ * with another one, e.g. after {@link Vector#refresh}.
+ *
+ * Configure with -Dvector.cache.size=N (number of queries kept, default 1024, 0 disables the cache).
+ */
+public class QueryResultCache {
+
+    /**
+     * The ranked hits of a query, best first
+     */
+    public static final class Hits {
+        final int[] docIds;
+        final String[] corpusIds;
+        final double[] scores;
+
+        Hits(int[] docIds, String[] corpusIds, double[] scores){
+            this.docIds = docIds;
+            this.corpusIds = corpusIds;
+            this.scores = scores;
+        }
+
+        public int size(){
+            return docIds.length;
+        }
+    }
+
+    private final int capacity;
+
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Hits> entries;
+
+    // The reader and store the cached results were computed on
+    private IndexReader reader;
+    private DocumentVectorStore store;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public QueryResultCache(int capacity){
+        if (capacity < 1){
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Hits> eldest){
+                if (size() > QueryResultCache.this.capacity){
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cache configured by -Dvector.cache.size, null if it is disabled
+     */
+    public static QueryResultCache fromSystemProperties(){
+        int capacity = Integer.getInteger("vector.cache.size", 1024);
+        return capacity > 0 ? new QueryResultCache(capacity) : null;
+    }
+
+    /**
+     * Build the key of a query from its query vector: queries analyzing to the same vector rank the same.
+     * The term ids only mean something for one dictionary, the cache empties itself when the store changes
+     * @param queryVector the query vector, sorted by term id
+     * @param field the field searched
+     * @param k how many results are kept
+     * @return the cache key
+     */
+    public static String key(QueryVector queryVector, String field, int k){
+        StringBuilder key = new StringBuilder(field).append('\u0000').append(k)
+                .append('\u0000').append(Double.doubleToLongBits(queryVector.length()));
+        for (int i = 0; i < queryVector.size(); i++) {
+            key.append('\u0000').append(queryVector.termId(i))
+                    .append(':').append(Double.doubleToLongBits(queryVector.weight(i)));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Look up the results of a query
+     * @param key the key of the query
+     * @param reader the reader currently searched
+     * @param store the document store currently searched
+     * @return the cached hits, null on a miss
+     */
+    public synchronized Hits get(String key, IndexReader reader, DocumentVectorStore store){
+        ensureCurrent(reader, store);
+        Hits cached = entries.get(key);
+        if (cached == null){
+            misses.increment();
+        }else {
+            hits.increment();
+        }
+        return cached;
+    }
+
+    /**
+     * Cache the results of a query
+     * @param key the key of the query
+     * @param value the ranked hits
+     * @param reader the reader the hits were computed on
+     * @param store the document store the hits were computed on
+     */
+    public synchronized void put(String key, Hits value, IndexReader reader, DocumentVectorStore store){
+        // Results of an older reader must not land in the new generation
+        if (reader == this.reader && store == this.store){
+            entries.put(key, value);
+        }
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public long hits(){
+        return hits.sum();
+    }
+
+    public long misses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return fraction of the lookups served from the cache
+     */
+    public double hitRate(){
+        long lookups = hits() + misses();
+        return lookups == 0 ? 0.0 : (double) hits() / lookups;
+    }
+
+    /**
+     * @return a one-line summary of the statistics
+     */
+    public String stats(){
+        return String.format(Locale.ROOT, "Result cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, %d/%d entries",
+                hits(), misses(), hitRate() * 100, evictions.sum(), invalidations.sum(), size(), capacity);
+    }
+
+    // Drop every entry when the reader or the store changed
+    private void ensureCurrent(IndexReader reader, DocumentVectorStore store){
+        if (reader != this.reader || store != this.store){
+            if (!entries.isEmpty()){
+                invalidations.increment();
+                entries.clear();
+            }
+            this.reader = reader;
+            this.store = store;
+        }
+    }
+}
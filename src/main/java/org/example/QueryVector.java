@@ -0,0 +1,123 @@
+package org.example;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.Map;
+
+/**
+ * Sparse, normalized tf_idf vector of a query: parallel arrays of term ids and weights,
+ * sorted by term id. The ids belong to the {@link TermDictionary} the vector was resolved
+ * against, so it can only be scored on a store sharing that dictionary.
+ * Tokens missing from the dictionary have no id, but they still take their share of the
+ * normalization: {@link #length()} is the length of the whole vector, theirs included.
+ * Instances are reused from query to query, see {@link QueryAnalyzer}.
+ */
+public class QueryVector {
+
+    private TermDictionary dictionary;
+
+    private int[] termIds = new int[16];
+
+    private double[] weights = new double[16];
+
+    private int size;
+
+    // Euclidean length of the vector, missing tokens included
+    private double length;
+
+    /**
+     * Build a query vector from a map based one
+     * @param queryVector the map of each query term and its weight
+     * @param dictionary the dictionary to resolve the terms against
+     * @return the query vector
+     */
+    public static QueryVector of(Map<String, Double> queryVector, TermDictionary dictionary){
+        QueryVector vector = new QueryVector();
+        vector.clear(dictionary);
+        double length = 0.0;
+        for (Map.Entry<String, Double> entry : queryVector.entrySet()) {
+            double weight = entry.getValue();
+            length += weight * weight;
+            int termId = dictionary.id(entry.getKey());
+            if (termId >= 0){
+                vector.add(termId, weight);
+            }
+        }
+        vector.sort();
+        vector.length = Math.sqrt(length);
+        return vector;
+    }
+
+    /**
+     * Empty the vector, keeping its arrays
+     * @param dictionary the dictionary the next terms are resolved against
+     */
+    void clear(TermDictionary dictionary){
+        this.dictionary = dictionary;
+        size = 0;
+        length = 0.0;
+    }
+
+    /**
+     * @return the index of the new entry
+     */
+    int add(int termId, double weight){
+        if (size == termIds.length){
+            termIds = ArrayUtil.grow(termIds, size + 1);
+            weights = ArrayUtil.grow(weights, size + 1);
+        }
+        termIds[size] = termId;
+        weights[size] = weight;
+        return size++;
+    }
+
+    void setWeight(int i, double weight){
+        weights[i] = weight;
+    }
+
+    void setLength(double length){
+        this.length = length;
+    }
+
+    // Insertion sort by term id, queries only have a handful of terms
+    void sort(){
+        for (int i = 1; i < size; i++) {
+            int id = termIds[i];
+            double weight = weights[i];
+            int j = i - 1;
+            while (j >= 0 && termIds[j] > id){
+                termIds[j + 1] = termIds[j];
+                weights[j + 1] = weights[j];
+                j--;
+            }
+            termIds[j + 1] = id;
+            weights[j + 1] = weight;
+        }
+    }
+
+    public TermDictionary getDictionary(){
+        return dictionary;
+    }
+
+    /**
+     * @return number of query terms found in the dictionary
+     */
+    public int size(){
+        return size;
+    }
+
+    public int termId(int i){
+        return termIds[i];
+    }
+
+    public double weight(int i){
+        return weights[i];
+    }
+
+    /**
+     * @return the Euclidean length of the vector, 1 once normalized, 0 for a query without any weight
+     */
+    public double length(){
+        return length;
+    }
+}
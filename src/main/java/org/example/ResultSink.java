@@ -0,0 +1,435 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Asynchronous writer of the run file.
+ * Query threads hand whole result blocks (the top k of a query) to a bounded queue and return right away;
+ * a background thread drains the queue in batches, encodes them into a direct buffer and writes it
+ * through a {@link FileChannel}. The blocks are written in the order they were submitted.
+ * A failure of the writer is reported by the next {@link #submit} and by {@link #close}.
+ *
+ * Configure with -Dvector.results.format=trec|gzip|binary (default trec)
+ * and -Dvector.results.queue=N (blocks waiting to be written, default 1024).
+ */
+public class ResultSink implements AutoCloseable {
+
+    public enum Format {
+        // query_id Q0 doc_id rank score tag, tab separated, with a header line
+        TREC(""),
+        // Same lines, gzip compressed
+        TREC_GZIP(".gz"),
+        // Compact binary blocks, see encodeBinary
+        BINARY(".bin");
+
+        // Appended to the results path
+        private final String extension;
+
+        Format(String extension){
+            this.extension = extension;
+        }
+
+        /**
+         * @param name trec, gzip or binary
+         * @return the format
+         */
+        public static Format fromName(String name){
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "trec" -> TREC;
+                case "gzip", "trec.gz" -> TREC_GZIP;
+                case "binary", "bin" -> BINARY;
+                default -> throw new IllegalArgumentException("Unknown results format: " + name);
+            };
+        }
+    }
+
+    private static final String HEADER = "query_id\tQ0\tdoc_id\trank\tscore\ttag\n";
+
+    private static final int BINARY_MAGIC = 0x52554E42; // "RUNB"
+
+    private static final int BINARY_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The ranked results of one query, the unit handed to the writer
+     */
+    private static final class Block {
+        final String queryId;
+        final String[] docIds;
+        final double[] scores;
+        final String tag;
+        // Rank of the first row
+        final int firstRank;
+
+        Block(String queryId, String[] docIds, double[] scores, String tag, int firstRank){
+            this.queryId = queryId;
+            this.docIds = docIds;
+            this.scores = scores;
+            this.tag = tag;
+            this.firstRank = firstRank;
+        }
+    }
+
+    // Tells the writer to flush and stop
+    private static final Block END = new Block(null, null, null, null, 0);
+
+    private final Path path;
+
+    private final Format format;
+
+    private final FileChannel channel;
+
+    private final BlockingQueue<Block> queue;
+
+    private final Thread thread;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // Read by the query threads in submit()
+    private volatile boolean closed;
+
+    /**
+     * Open a run file
+     * @param path the file to write, replaced if it exists
+     * @param format the encoding of the results
+     * @param queueCapacity how many blocks may wait for the writer before submit() blocks
+     * @throws IOException if the file cannot be opened
+     */
+    public ResultSink(Path path, Format format, int queueCapacity) throws IOException {
+        this.path = path;
+        this.format = format;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.thread = new Thread(this::run, "result-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Open the run file configured by the vector.results.* system properties
+     * @param resultsPath the results path, the format's extension is appended to it
+     * @return the sink
+     * @throws IOException if the file cannot be opened
+     */
+    public static ResultSink fromSystemProperties(Path resultsPath) throws IOException {
+        Format format = Format.fromName(System.getProperty("vector.results.format", "trec"));
+        int capacity = Integer.getInteger("vector.results.queue", 1024);
+        return new ResultSink(resultsPath.resolveSibling(resultsPath.getFileName() + format.extension), format, capacity);
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    /**
+     * Queue the results of a query, blocks only while the queue is full
+     * @param result the ranked results
+     */
+    public void submit(QueryResult result){
+        String[] docIds = new String[result.size()];
+        double[] scores = new double[result.size()];
+        for (int i = 0; i < result.size(); i++) {
+            docIds[i] = result.getCorpusId(i);
+            scores[i] = result.getScore(i);
+        }
+        submit(Integer.toString(result.getQuery().getId()), docIds, scores, result.getTag(), 1);
+    }
+
+    /**
+     * Queue ranked rows of a query
+     * @param queryId the query id
+     * @param docIds the corpus-id of each row
+     * @param scores the score of each row
+     * @param tag the run name
+     * @param firstRank the rank of the first row
+     */
+    public void submit(String queryId, String[] docIds, double[] scores, String tag, int firstRank){
+        checkFailure();
+        if (closed){
+            throw new IllegalStateException("Result sink is closed: " + path);
+        }
+        try {
+            queue.put(new Block(queryId, docIds, scores, tag, firstRank));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queuing results", e);
+        }
+    }
+
+    // Writer thread: drain the queue batch by batch until the end marker
+    private void run(){
+        List<Block> batch = new ArrayList<>();
+        // Set once the end marker is taken, closing the output (final flush, gzip trailer) may still fail after it
+        boolean end = false;
+        try (Output output = format == Format.TREC_GZIP ? new GzipOutput(channel) : new ChannelOutput(channel)) {
+            Encoder encoder = new Encoder(output);
+            encoder.header();
+            while (!end){
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Block block : batch) {
+                    if (block == END){
+                        end = true;
+                        break;
+                    }
+                    encoder.block(block);
+                }
+                encoder.flush();
+                batch.clear();
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            if (end){
+                // Nothing left to drain, close() is waiting for this thread
+                return;
+            }
+            // Keep draining, so query threads never block on a dead writer
+            try {
+                while (queue.take() != END) {
+                    // Discard
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkFailure(){
+        Throwable t = failure.get();
+        if (t != null){
+            throw new UncheckedIOException("Unable to write the results to " + path,
+                    t instanceof IOException ? (IOException) t : new IOException(t));
+        }
+    }
+
+    /**
+     * Write every queued block and close the file
+     * @throws IOException if the results could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed){
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the results", e);
+        } finally {
+            channel.close();
+        }
+        Throwable t = failure.get();
+        if (t != null){
+            throw t instanceof IOException ? (IOException) t : new IOException("Unable to write the results to " + path, t);
+        }
+    }
+
+    /**
+     * Encodes the blocks of the sink's format into a direct buffer, handed to the output when full
+     */
+    private final class Encoder {
+        private final Output output;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+        private final StringBuilder text = new StringBuilder();
+
+        private Encoder(Output output){
+            this.output = output;
+        }
+
+        private void header() throws IOException {
+            if (format == Format.BINARY){
+                buffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION);
+            }else {
+                text.append(HEADER);
+                encodeText();
+            }
+        }
+
+        private void block(Block block) throws IOException {
+            if (format == Format.BINARY){
+                encodeBinary(block);
+                return;
+            }
+            for (int i = 0; i < block.docIds.length; i++) {
+                text.append(block.queryId).append("\tQ0\t").append(block.docIds[i]).append('\t')
+                        .append(block.firstRank + i).append('\t').append(block.scores[i]).append('\t')
+                        .append(block.tag).append('\n');
+            }
+            encodeText();
+        }
+
+        private void encodeText() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true){
+                CoderResult result = utf8.encode(chars, buffer, true);
+                if (result.isOverflow()){
+                    drain();
+                }else {
+                    if (result.isError()){
+                        result.throwException();
+                    }
+                    break;
+                }
+            }
+            utf8.reset();
+            text.setLength(0);
+        }
+
+        /*
+         Binary block (big-endian):
+           query id, tag, first rank, number of rows, then per row: doc id, score (double)
+         Strings are written as their UTF-8 length followed by the bytes
+         */
+        private void encodeBinary(Block block) throws IOException {
+            putString(block.queryId);
+            putString(block.tag);
+            ensure(8);
+            buffer.putInt(block.firstRank).putInt(block.docIds.length);
+            for (int i = 0; i < block.docIds.length; i++) {
+                putString(block.docIds[i]);
+                ensure(8);
+                buffer.putDouble(block.scores[i]);
+            }
+        }
+
+        private void putString(String value) throws IOException {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            ensure(4);
+            buffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length){
+                ensure(1);
+                int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes){
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            output.write(buffer);
+            buffer.clear();
+        }
+
+        private void flush() throws IOException {
+            if (buffer.position() > 0){
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Destination of the encoded bytes
+     */
+    private interface Output extends AutoCloseable {
+        // Consumes every remaining byte of the buffer
+        void write(ByteBuffer bytes) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static final class ChannelOutput implements Output {
+        private final FileChannel channel;
+
+        private ChannelOutput(FileChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()){
+                channel.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * gzip member (RFC 1952) written with a raw deflater straight from and to direct buffers
+     */
+    private static final class GzipOutput implements Output {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final ChannelOutput out;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer compressed = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long size;
+
+        private GzipOutput(FileChannel channel) throws IOException {
+            this.out = new ChannelOutput(channel);
+            out.write(ByteBuffer.wrap(GZIP_HEADER));
+        }
+
+        @Override
+        public void write(ByteBuffer bytes) throws IOException {
+            // The deflater keeps a reference to its input, give it a view the caller cannot rewind
+            ByteBuffer input = bytes.duplicate();
+            size += bytes.remaining();
+            crc.update(bytes);
+            deflater.setInput(input);
+            while (!deflater.needsInput()){
+                deflater.deflate(compressed);
+                drain();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                deflater.finish();
+                while (!deflater.finished()){
+                    deflater.deflate(compressed);
+                    drain();
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                trailer.putInt((int) crc.getValue()).putInt((int) size).flip();
+                out.write(trailer);
+                out.close();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void drain() throws IOException {
+            compressed.flip();
+            out.write(compressed);
+            compressed.clear();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Fixed-size min-heap keeping the k best (docId, score) pairs seen so far.
+ * The root is always the weakest hit, so a new candidate only has to beat the root to get in.
+ */
+public class ScoreHeap {
+
+    // Parallel arrays holding the heap entries
+    private final int[] docs;
+    private final double[] scores;
+
+    // Number of entries currently in the heap
+    private int size;
+
+    public ScoreHeap(int k){
+        this.docs = new int[Math.max(k, 0)];
+        this.scores = new double[Math.max(k, 0)];
+    }
+
+    /**
+     * Offer a candidate to the heap
+     * @param docId the document id
+     * @param score the score of the document
+     * @return true if the candidate was kept
+     */
+    public boolean offer(int docId, double score){
+        if (docs.length == 0){
+            return false;
+        }
+        if (size < docs.length){
+            // Still filling up, append and sift up
+            docs[size] = docId;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!worse(docs[0], scores[0], docId, score)){
+            return false;
+        }
+        // Replace the weakest hit and restore the heap
+        docs[0] = docId;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * The score a candidate has to beat to enter a full heap
+     * @return the smallest kept score, or negative infinity while the heap is not full
+     */
+    public double threshold(){
+        return size < docs.length ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    /**
+     * Empty the heap into a map sorted by descending score
+     * @return the sorted map where the key is document id and the value is the score
+     */
+    public LinkedHashMap<Integer, Double> drainDescending(){
+        int n = size;
+        int[] sortedDocs = new int[n];
+        double[] sortedScores = new double[n];
+        // Popping the root repeatedly yields the hits from weakest to best
+        for (int i = n - 1; i >= 0; i--) {
+            sortedDocs[i] = docs[0];
+            sortedScores[i] = scores[0];
+            size--;
+            docs[0] = docs[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        LinkedHashMap<Integer, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            result.put(sortedDocs[i], sortedScores[i]);
+        }
+        return result;
+    }
+
+    // True if (docA, scoreA) ranks below (docB, scoreB); ties go to the lower doc id
+    private static boolean worse(int docA, double scoreA, int docB, double scoreB){
+        if (scoreA != scoreB){
+            return scoreA < scoreB;
+        }
+        return docA > docB;
+    }
+
+    private void siftUp(int i){
+        while (i > 0){
+            int parent = (i - 1) >>> 1;
+            if (!worse(docs[i], scores[i], docs[parent], scores[parent])){
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i){
+        while (true){
+            int left = 2 * i + 1;
+            if (left >= size){
+                break;
+            }
+            int right = left + 1;
+            int weakest = left;
+            if (right < size && worse(docs[right], scores[right], docs[left], scores[left])){
+                weakest = right;
+            }
+            if (!worse(docs[weakest], scores[weakest], docs[i], scores[i])){
+                break;
+            }
+            swap(i, weakest);
+            i = weakest;
+        }
+    }
+
+    private void swap(int a, int b){
+        int d = docs[a];
+        docs[a] = docs[b];
+        docs[b] = d;
+        double s = scores[a];
+        scores[a] = scores[b];
+        scores[b] = s;
+    }
+}
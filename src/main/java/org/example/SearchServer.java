@@ -0,0 +1,463 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Long-running local search service: the index reader, the document vectors and the query caches are
+ * loaded once and stay warm between requests, instead of paying the JVM start, the index open and the
+ * vector build on every run. Each request runs on its own virtual thread.
+ *
+ * Endpoints (JSON in and out, bound to the loopback interface only):
+ *   GET  /search?q=text&amp;k=10          rank the documents for one query
+ *   POST /batch  {"queries":[...],"k":10} rank several queries concurrently
+ *   POST /reload                          reopen the index if a new commit was made
+ *   GET  /metrics                         the stage latencies, Prometheus text (with -Dvector.metrics=true)
+ *   GET  /health                          the index version and the number of documents
+ *
+ * Configure with -Dvector.server.port=N (default 8080), -Dvector.server.maxK=N (default 1000) and
+ * -Dvector.server.maxBatch=N (default 100).
+ */
+public final class SearchServer implements AutoCloseable {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final int DEFAULT_K = 10;
+
+    /**
+     * A reader and its document vectors. Searches hold the read lock, so a reload can wait
+     * for the searches in flight before closing the engine it replaced
+     */
+    private static final class Engine {
+        private final Vector vector;
+        private final DocumentVectorStore store;
+        private final long version;
+        private final int numDocs;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean closed;
+
+        private Engine(Vector vector, DocumentVectorStore store, long version, int numDocs){
+            this.vector = vector;
+            this.store = store;
+            this.version = version;
+            this.numDocs = numDocs;
+        }
+    }
+
+    private final HttpServer server;
+
+    // One virtual thread per request, and per query of a batch
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Path indexPath;
+    private final Path corpusPath;
+    private final String field;
+    private final int maxK;
+    private final int maxBatch;
+
+    private volatile Engine engine;
+
+    // One reload at a time
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    /**
+     * Open the index, load its document vectors and start answering on the port
+     * @param indexPath the index directory
+     * @param corpusPath the corpus the index was built from
+     * @param field the field searched
+     * @param port the port to listen on, 0 for any free port
+     * @param maxK the largest k a request may ask for
+     * @param maxBatch the largest number of queries a batch may hold
+     * @throws IOException if the index cannot be opened or the port cannot be bound
+     */
+    public SearchServer(Path indexPath, Path corpusPath, String field, int port, int maxK, int maxBatch)
+            throws IOException {
+        this.indexPath = indexPath;
+        this.corpusPath = corpusPath;
+        this.field = field;
+        this.maxK = maxK;
+        this.maxBatch = maxBatch;
+        this.engine = openEngine();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/search", this::handleSearch);
+        server.createContext("/batch", this::handleBatch);
+        server.createContext("/reload", this::handleReload);
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/health", this::handleHealth);
+        server.start();
+    }
+
+    /**
+     * @param indexPath the index directory
+     * @param corpusPath the corpus the index was built from
+     * @param field the field searched
+     * @return the server configured by -Dvector.server.port, -Dvector.server.maxK and -Dvector.server.maxBatch,
+     * already listening
+     * @throws IOException if the index cannot be opened or the port cannot be bound
+     */
+    public static SearchServer fromSystemProperties(Path indexPath, Path corpusPath, String field) throws IOException {
+        return new SearchServer(indexPath, corpusPath, field,
+                Integer.getInteger("vector.server.port", 8080),
+                Math.max(1, Integer.getInteger("vector.server.maxK", 1000)),
+                Math.max(1, Integer.getInteger("vector.server.maxBatch", 100)));
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    private Engine openEngine() throws IOException {
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexPath));
+        Vector vector = new Vector(Indexer.createAnalyzer(), reader, corpusPath, null);
+        vector.configureFromSystemProperties();
+        DocumentVectorStore store = vector.loadOrBuildDocumentStore(field);
+        return new Engine(vector, store, reader.getVersion(), reader.numDocs());
+    }
+
+    /**
+     * Reopen the index if a new commit was made since the current engine was opened, e.g. by IndexUpdater.
+     * Searches keep running on the old engine while the new one is built, it is closed once they finish
+     * @return true if the index was reopened
+     * @throws IOException if the new commit cannot be read
+     */
+    public boolean reload() throws IOException {
+        reloadLock.lock();
+        try {
+            Engine current = engine;
+            try (Directory directory = FSDirectory.open(indexPath)) {
+                // Same version as the reader of the current engine: nothing was committed since
+                if (SegmentInfos.readLatestCommit(directory).getVersion() == current.version){
+                    return false;
+                }
+            }
+            engine = openEngine();
+            retire(current);
+            return true;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    // Wait for the searches in flight on an engine, then close it
+    private static void retire(Engine old){
+        old.lock.writeLock().lock();
+        try {
+            old.closed = true;
+            old.vector.closeAll();
+        } finally {
+            old.lock.writeLock().unlock();
+        }
+    }
+
+    // Read-lock the current engine, retrying if a reload closed it in between
+    private Engine acquire(){
+        while (true){
+            Engine current = engine;
+            current.lock.readLock().lock();
+            if (!current.closed){
+                return current;
+            }
+            current.lock.readLock().unlock();
+        }
+    }
+
+    private ObjectNode search(Engine current, String query, int k){
+        long start = System.nanoTime();
+        QueryResultCache.Hits hits = current.vector.search(query, current.store, k, field);
+        ObjectNode result = JSON.createObjectNode();
+        result.put("query", query);
+        result.put("tookMs", (System.nanoTime() - start) / 1e6);
+        ArrayNode array = result.putArray("hits");
+        for (int i = 0; i < hits.size(); i++) {
+            ObjectNode hit = array.addObject();
+            hit.put("rank", i + 1);
+            hit.put("id", unquote(hits.corpusIds[i]));
+            hit.put("docId", hits.docIds[i]);
+            hit.put("score", hits.scores[i]);
+        }
+        return result;
+    }
+
+    // The corpus-ids are kept with the quotes of the corpus file
+    private static String unquote(String id){
+        if (id != null && id.length() >= 2 && id.startsWith("\"") && id.endsWith("\"")){
+            return id.substring(1, id.length() - 1);
+        }
+        return id;
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        if (!requireMethod(exchange, "GET")){
+            return;
+        }
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        String query = params.get("q");
+        if (query == null || query.isBlank()){
+            sendError(exchange, 400, "Missing query parameter q");
+            return;
+        }
+        int k;
+        try {
+            k = parseK(params.get("k"));
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+        Engine current = acquire();
+        try {
+            send(exchange, 200, search(current, query, k));
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "Search failed: " + e.getMessage());
+        } finally {
+            current.lock.readLock().unlock();
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        if (!requireMethod(exchange, "POST")){
+            return;
+        }
+        List<String> queries = new ArrayList<>();
+        int k;
+        try (InputStream body = exchange.getRequestBody()) {
+            JsonNode request = JSON.readTree(body);
+            JsonNode array = request == null ? null : request.get("queries");
+            if (array == null || !array.isArray()){
+                sendError(exchange, 400, "Expected a JSON object with a \"queries\" array");
+                return;
+            }
+            if (array.size() > maxBatch){
+                throw new IllegalArgumentException("a batch holds at most " + maxBatch + " queries: " + array.size());
+            }
+            for (JsonNode query : array) {
+                queries.add(query.asText());
+            }
+            k = parseK(request.has("k") ? request.get("k").asText() : null);
+        } catch (IOException | IllegalArgumentException e) {
+            sendError(exchange, 400, "Invalid batch: " + e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        // The whole batch runs on one engine, even if a reload happens meanwhile
+        Engine current = acquire();
+        // Set once a query failed, the queries not started yet are skipped
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<ObjectNode>> futures = new ArrayList<>(queries.size());
+        ArrayNode results = JSON.createArrayNode();
+        Throwable failure = null;
+        try {
+            try {
+                for (String query : queries) {
+                    futures.add(executor.submit(() -> {
+                        if (failed.get()){
+                            return null;
+                        }
+                        try {
+                            return search(current, query, k);
+                        } catch (RuntimeException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }));
+                }
+            } catch (RuntimeException e) {
+                // E.g. the server is closing, the queries already submitted are still awaited
+                failed.set(true);
+                failure = e;
+            }
+            // Every query runs on the engine read-locked here, none may be left running once it is unlocked
+            Throwable error = awaitAll(futures, failed, results);
+            if (failure == null){
+                failure = error;
+            }
+        } finally {
+            current.lock.readLock().unlock();
+        }
+        if (failure != null){
+            sendError(exchange, 500, "Batch failed: " + failure.getMessage());
+            return;
+        }
+        ObjectNode response = JSON.createObjectNode();
+        response.put("tookMs", (System.nanoTime() - start) / 1e6);
+        response.set("results", results);
+        send(exchange, 200, response);
+    }
+
+    // Wait for every query of a batch, even after a failure, and collect the results in order.
+    // An interrupt does not cut the wait short, it only skips the queries not started yet
+    private static Throwable awaitAll(List<Future<ObjectNode>> futures, AtomicBoolean failed, ArrayNode results){
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<ObjectNode> future : futures) {
+            while (true){
+                try {
+                    ObjectNode result = future.get();
+                    if (result != null){
+                        results.add(result);
+                    }
+                    break;
+                } catch (ExecutionException e) {
+                    if (failure == null){
+                        failure = e.getCause();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    failed.set(true);
+                    if (failure == null){
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+        return failure;
+    }
+
+    private void handleReload(HttpExchange exchange) throws IOException {
+        if (!requireMethod(exchange, "POST")){
+            return;
+        }
+        long start = System.nanoTime();
+        boolean reloaded;
+        try {
+            reloaded = reload();
+        } catch (IOException | RuntimeException e) {
+            sendError(exchange, 500, "Reload failed: " + e.getMessage());
+            return;
+        }
+        Engine current = engine;
+        ObjectNode response = JSON.createObjectNode();
+        response.put("reloaded", reloaded);
+        response.put("version", current.version);
+        response.put("documents", current.numDocs);
+        response.put("tookMs", (System.nanoTime() - start) / 1e6);
+        send(exchange, 200, response);
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!requireMethod(exchange, "GET")){
+            return;
+        }
+        if (!QueryMetrics.ENABLED){
+            sendError(exchange, 404, "Metrics are disabled, start the server with -Dvector.metrics=true");
+            return;
+        }
+        send(exchange, 200, "text/plain; version=0.0.4", QueryMetrics.toPrometheus());
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        if (!requireMethod(exchange, "GET")){
+            return;
+        }
+        Engine current = engine;
+        ObjectNode response = JSON.createObjectNode();
+        response.put("status", "ok");
+        response.put("field", field);
+        response.put("version", current.version);
+        response.put("documents", current.numDocs);
+        send(exchange, 200, response);
+    }
+
+    private int parseK(String value){
+        if (value == null || value.isEmpty()){
+            return DEFAULT_K;
+        }
+        int k;
+        try {
+            k = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("k must be an integer: " + value);
+        }
+        if (k < 1 || k > maxK){
+            throw new IllegalArgumentException("k must be between 1 and " + maxK + ": " + k);
+        }
+        return k;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery){
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null){
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static boolean requireMethod(HttpExchange exchange, String method) throws IOException {
+        if (method.equalsIgnoreCase(exchange.getRequestMethod())){
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", method);
+        sendError(exchange, 405, "Use " + method);
+        return false;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        ObjectNode error = JSON.createObjectNode();
+        error.put("error", message);
+        send(exchange, status, error);
+    }
+
+    private static void send(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        send(exchange, status, "application/json; charset=utf-8", JSON.writeValueAsString(body));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stop answering, wait a little for the requests in flight and close the index
+     */
+    @Override
+    public void close(){
+        server.stop(1);
+        executor.close();
+        retire(engine);
+    }
+}
@@ -0,0 +1,138 @@
+package org.example;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scatter-gather search over a corpus hash-partitioned into several index directories.
+ * Each shard keeps its own packed document vector and inverted index on its local doc ids; all of them
+ * are weighted with the idf of the whole corpus and share its dictionary, so one query vector is valid on
+ * every shard and the scores are exactly those of the unsharded engine.
+ * A query searches every shard in parallel, then the per-shard top k are merged with a heap on the global
+ * doc ids (the doc ids of a MultiReader over the shards, in shard order).
+ *
+ * Configure with -Dindexer.shards=N (default 1: a single index).
+ */
+public class ShardedIndex implements AutoCloseable {
+
+    private final InvertedIndex[] shards;
+
+    // Global doc id of the first document of each shard
+    private final int[] docBases;
+
+    // Searches the shards of a query in parallel, the calling thread takes the first shard
+    private final ForkJoinPool pool;
+
+    /**
+     * @param shards the inverted index of each shard, built on the global idf
+     * @param docBases the global doc id of the first document of each shard
+     */
+    public ShardedIndex(InvertedIndex[] shards, int[] docBases){
+        if (shards.length != docBases.length){
+            throw new IllegalArgumentException("Expected one doc base per shard");
+        }
+        this.shards = shards;
+        this.docBases = docBases;
+        this.pool = new ForkJoinPool(Math.max(1, Math.min(shards.length - 1, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * @return the number of shards configured by -Dindexer.shards, at least 1
+     */
+    public static int shardsFromSystemProperties(){
+        return Math.max(1, Integer.getInteger("indexer.shards", 1));
+    }
+
+    /**
+     * The shard a document goes to, stable across runs and JVMs
+     * @param id the (quoted) corpus-id of the document
+     * @param shards the number of shards
+     * @return the shard of the document
+     */
+    public static int shardOf(String id, int shards){
+        return Math.floorMod(id.hashCode(), shards);
+    }
+
+    /**
+     * @param base the directory holding the shards
+     * @param shards the number of shards
+     * @return the index directory of each shard
+     */
+    public static List<Path> shardPaths(Path base, int shards){
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            paths.add(base.resolve("shard-" + i));
+        }
+        return paths;
+    }
+
+    /**
+     * Compute the top k Cosine Similarities on every shard in parallel and merge them
+     * @param queryVector the query vector, resolved against the dictionary of the global idf
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is the global document id and the value is the similarity
+     */
+    public LinkedHashMap<Integer, Double> search(QueryVector queryVector, int k){
+        List<CompletableFuture<LinkedHashMap<Integer, Double>>> scattered = new ArrayList<>(shards.length);
+        for (int i = 1; i < shards.length; i++) {
+            InvertedIndex shard = shards[i];
+            scattered.add(CompletableFuture.supplyAsync(() -> shard.search(queryVector, k), pool));
+        }
+        LinkedHashMap<Integer, Double> first = shards[0].search(queryVector, k);
+
+        // Gather: the best k of the per-shard best k
+        ScoreHeap heap = new ScoreHeap(k);
+        offer(heap, first, docBases[0]);
+        for (int i = 1; i < shards.length; i++) {
+            offer(heap, scattered.get(i - 1).join(), docBases[i]);
+        }
+        return heap.drainDescending();
+    }
+
+    private static void offer(ScoreHeap heap, LinkedHashMap<Integer, Double> shardHits, int docBase){
+        for (Map.Entry<Integer, Double> hit : shardHits.entrySet()) {
+            heap.offer(docBase + hit.getKey(), hit.getValue());
+        }
+    }
+
+    public int size(){
+        return shards.length;
+    }
+
+    /**
+     * @return the dictionary shared by every shard
+     */
+    public TermDictionary getDictionary(){
+        return shards[0].getStore().getDictionary();
+    }
+
+    /**
+     * @return approximate heap usage of the shard stores in bytes, the shared dictionary counted once
+     */
+    public long ramBytesUsed(){
+        long bytes = getDictionary().ramBytesUsed();
+        for (InvertedIndex shard : shards) {
+            bytes += shard.getStore().ramBytesUsed() - shard.getStore().getDictionary().ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close(){
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)){
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.example;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Static pruning of the document vectors: the postings with the smallest normalized tf_idf weights are
+ * dropped once, when the store is built, instead of being scored by every query.
+ * A pruned row keeps the length of the full row, so the cosine of a document only loses the contribution
+ * of its dropped terms, and every document keeps at least its highest weight so it stays retrievable.
+ *
+ * Three ways to choose the postings, written as a spec:
+ *   top:N      keep the N highest weights of every document
+ *   min:W      keep the weights of at least W
+ *   budget:B   keep the B highest weights of the whole store, a fraction of the postings if B &lt;= 1
+ *
+ * Configure with -Dvector.prune=spec (default: off, keep every posting).
+ */
+public class StaticPruning {
+
+    public enum Mode {
+        TOP, MIN, BUDGET
+    }
+
+    private final Mode mode;
+
+    private final double value;
+
+    public StaticPruning(Mode mode, double value){
+        if (!(value > 0.0) || mode == Mode.TOP && value != Math.rint(value)){
+            throw new IllegalArgumentException("Invalid pruning " + mode.name().toLowerCase(Locale.ROOT) + ": " + value);
+        }
+        this.mode = mode;
+        this.value = value;
+    }
+
+    /**
+     * @return the pruning set by -Dvector.prune, null if every posting is kept
+     */
+    public static StaticPruning fromSystemProperties(){
+        String spec = System.getProperty("vector.prune");
+        return spec == null || spec.isEmpty() ? null : parse(spec);
+    }
+
+    /**
+     * @param spec top:N, min:W or budget:B
+     * @return the pruning
+     */
+    public static StaticPruning parse(String spec){
+        int colon = spec.indexOf(':');
+        if (colon < 0){
+            throw new IllegalArgumentException("Expected top:N, min:W or budget:B: " + spec);
+        }
+        Mode mode;
+        double value;
+        try {
+            mode = Mode.valueOf(spec.substring(0, colon).trim().toUpperCase(Locale.ROOT));
+            value = Double.parseDouble(spec.substring(colon + 1).trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Expected top:N, min:W or budget:B: " + spec);
+        }
+        return new StaticPruning(mode, value);
+    }
+
+    /**
+     * @param specs comma separated specs, e.g. "top:50,min:0.05,budget:0.5"
+     * @return the prunings, in the order of the list
+     */
+    public static List<StaticPruning> parseAll(String specs){
+        List<StaticPruning> prunings = new ArrayList<>();
+        for (String spec : specs.split(",")) {
+            if (!spec.isBlank()){
+                prunings.add(parse(spec.trim()));
+            }
+        }
+        return prunings;
+    }
+
+    /**
+     * Prune a store
+     * @param store the packed document vector
+     * @return a new store with the kept postings, sharing the dictionary of the store
+     */
+    public DocumentVectorStore apply(DocumentVectorStore store){
+        store.requireWeights();
+        float threshold = mode == Mode.MIN ? (float) value : mode == Mode.BUDGET ? budgetThreshold(store) : 0.0f;
+        int limit = mode == Mode.TOP ? (int) value : Integer.MAX_VALUE;
+        DocumentVectorStore.Builder builder = new DocumentVectorStore.Builder(store.getField(), store.getDictionary(),
+                store.maxDoc());
+        int[] ids = new int[64];
+        float[] weights = new float[64];
+        float[] sorted = new float[64];
+        for (int docId = 0; docId < store.maxDoc(); docId++) {
+            int start = store.start(docId);
+            int size = store.end(docId) - start;
+            if (size == 0){
+                continue;
+            }
+            ids = ArrayUtil.grow(ids, size);
+            weights = ArrayUtil.grow(weights, size);
+            float cutoff = threshold;
+            // Ties at the cutoff of a top N are kept in term order until the row is full
+            int ties = Integer.MAX_VALUE;
+            if (size > limit){
+                sorted = ArrayUtil.grow(sorted, size);
+                for (int i = 0; i < size; i++) {
+                    sorted[i] = store.weight(start + i);
+                }
+                Arrays.sort(sorted, 0, size);
+                cutoff = sorted[size - limit];
+                ties = 0;
+                for (int i = size - limit; i < size && sorted[i] == cutoff; i++) {
+                    ties++;
+                }
+            }
+            float best = 0.0f;
+            int bestAt = -1;
+            int n = 0;
+            for (int i = start; i < start + size; i++) {
+                float weight = store.weight(i);
+                if (weight > best){
+                    best = weight;
+                    bestAt = i;
+                }
+                if (weight > cutoff || weight == cutoff && ties-- > 0){
+                    ids[n] = store.termId(i);
+                    weights[n] = weight;
+                    n++;
+                }
+            }
+            // Every document keeps its best term
+            if (n == 0 && bestAt >= 0){
+                ids[0] = store.termId(bestAt);
+                weights[0] = best;
+                n = 1;
+            }
+            builder.addRow(docId, ids, weights, n, store.length(docId));
+        }
+        return builder.build();
+    }
+
+    // The smallest weight among the highest ones of the budget
+    private float budgetThreshold(DocumentVectorStore store){
+        long budget = value <= 1.0 ? Math.round(value * store.size()) : (long) value;
+        if (budget >= store.size()){
+            return 0.0f;
+        }
+        float[] sorted = new float[store.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = store.weight(i);
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) (sorted.length - Math.max(1, budget))];
+    }
+
+    public Mode getMode(){
+        return mode;
+    }
+
+    public double getValue(){
+        return value;
+    }
+
+    @Override
+    public String toString(){
+        String number = value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+        return mode.name().toLowerCase(Locale.ROOT) + ":" + number;
+    }
+}
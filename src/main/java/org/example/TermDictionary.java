@@ -0,0 +1,115 @@
+package org.example;
+
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+
+/**
+ * Field-level term dictionary mapping each term to a dense int id.
+ * The terms are kept as UTF-8 bytes in a single block pool instead of one String per term.
+ * Lookups are read-only and can be shared between threads once the dictionary is built.
+ */
+public class TermDictionary {
+
+    // Term bytes -> id, ids are assigned in insertion order
+    private final BytesRefHash terms = new BytesRefHash();
+
+    /**
+     * Build the dictionary of a field with one pass over its terms.
+     * The terms enum is sorted, so the ids follow the byte order of the terms
+     * @param indexReader the reader to read the terms from
+     * @param field the field to build the dictionary of
+     * @return the dictionary of the field, empty if the field is not indexed
+     * @throws IOException if the terms cannot be read
+     */
+    public static TermDictionary build(IndexReader indexReader, String field) throws IOException {
+        TermDictionary dictionary = new TermDictionary();
+        Terms fieldTerms = MultiTerms.getTerms(indexReader, field);
+        if (fieldTerms == null){
+            return dictionary;
+        }
+        TermsEnum iterator = fieldTerms.iterator();
+        BytesRef term;
+        while ((term = iterator.next()) != null){
+            dictionary.add(term);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Add a term if it is not in the dictionary yet
+     * @param term the term to add
+     * @return the id of the term
+     */
+    public int add(BytesRef term){
+        int id = terms.add(term);
+        // A negative id means the term was already there
+        return id < 0 ? -id - 1 : id;
+    }
+
+    /**
+     * @param term the term to add
+     * @return the id of the term
+     */
+    public int add(String term){
+        return add(new BytesRef(term));
+    }
+
+    /**
+     * @param term the term to look up
+     * @return the id of the term, -1 if not in the dictionary
+     */
+    public int id(BytesRef term){
+        return terms.find(term);
+    }
+
+    /**
+     * @param term the term to look up
+     * @return the id of the term, -1 if not in the dictionary
+     */
+    public int id(String term){
+        return id(new BytesRef(term));
+    }
+
+    /**
+     * @param id the id of the term
+     * @return the text of the term
+     */
+    public String term(int id){
+        return terms.get(id, new BytesRef()).utf8ToString();
+    }
+
+    /**
+     * @param id the id of the term
+     * @param scratch reused to point at the term bytes
+     * @return the bytes of the term, only valid until the scratch is reused
+     */
+    public BytesRef termBytes(int id, BytesRef scratch){
+        return terms.get(id, scratch);
+    }
+
+    /**
+     * @return a copy of the dictionary with the same ids, that can be extended without affecting readers of this one
+     */
+    public TermDictionary copy(){
+        TermDictionary copy = new TermDictionary();
+        BytesRef scratch = new BytesRef();
+        for (int id = 0; id < size(); id++) {
+            copy.add(terms.get(id, scratch));
+        }
+        return copy;
+    }
+
+    public int size(){
+        return terms.size();
+    }
+
+    public long ramBytesUsed(){
+        return terms.ramBytesUsed();
+    }
+}
@@ -7,15 +7,30 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,40 +45,148 @@ public class Vector {
     // Same analyzer as the Indexer class
     private Analyzer analyzer;
 
-    private Map<String, String> corpusList;
+    // Allocation-free analysis of the queries into sparse query vectors
+    private final QueryAnalyzer queryAnalyzer;
+
+    // Idle query vectors of the search paths, shared instead of thread-local so short-lived virtual threads reuse them too
+    private final ConcurrentLinkedQueue<QueryVector> idleQueryVectors = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<QueryVector[]> idleFieldVectors = new ConcurrentLinkedQueue<>();
+
+    // Doc id -> (quoted) corpus-id, for the results
+    private ExternalIds externalIds;
 
     // Store the document vector
     private Map<Integer, Map<String, Double>> documentVector;
 
-    // Store the query vector
-    private Map<String, Double> queryVector;
+    // Postings view of the document vector, used by the term-at-a-time retrieval
+    private InvertedIndex invertedIndex;
+
+    // The map based document vector the inverted index was built from
+    private Map<Integer, Map<String, Double>> invertedVector;
+
+    // true: walk the postings of the query terms only, false: score every document vector
+    private boolean termAtATime = true;
+
+    // true: skip the documents that cannot enter the top k (MaxScore), see -Dvector.pruning
+    private boolean pruning = Boolean.getBoolean("vector.pruning");
+
+    // Queries scored together, sharing the postings of their common terms; 1 scores them one by one, see -Dvector.batch
+    private int batchSize = Math.max(1, Integer.getInteger("vector.batch", 1));
+
+    // Drop the low-weight postings of the document vectors after loading them, see -Dvector.prune
+    private StaticPruning staticPruning = StaticPruning.fromSystemProperties();
+
+    // Score every document on int8/float16 weights instead of walking the postings, see -Dvector.quantized
+    private QuantizedVectorStore.Encoding quantization = QuantizedVectorStore.Encoding.fromSystemProperties();
+
+    // Quantized copy of the last store searched with quantization on, see loadOrBuildDocumentStore
+    private QuantizedVectorStore quantizedStore;
+
+    // idf of every term, per field, shared by the document and the query vectors
+    private final Map<String, IdfTable> idfTables = new ConcurrentHashMap<>();
+
+    // Id -> line index of the corpus file, to look up the expected answers
+    private volatile CorpusCatalog corpusCatalog;
+
+    // Optional dense re-ranking of the top results, null to keep the tf-idf ranking
+    private DenseReranker reranker;
+
+    // Hybrid retrieval: query embeddings for the HNSW search, null for tf-idf only
+    private EmbeddingMatrix queryEmbeddings;
+
+    // Runs the kNN search of a query while its tf-idf search runs on the query thread
+    private ExecutorService knnExecutor;
+
+    // Results of recent queries, null when disabled (-Dvector.cache.size=0)
+    private final QueryResultCache resultCache = QueryResultCache.fromSystemProperties();
+
+    // Reciprocal rank fusion constant, score = sum of 1 / (RRF_K + rank)
+    private static final int RRF_K = Integer.getInteger("vector.rrf.k", 60);
 
     // Total number of documents: 5183
     private final int TOTALDOCS;
 
-    // Writer
-    private BufferedWriter writer;
+    // Asynchronous writer of the results file
+    private ResultSink resultSink;
+
+    // The corpus the index was built from
+    private final Path corpusPath;
 
-    public Vector(Analyzer analyzer, Map<String, String> corpusList){
-        initialize();
+    public Vector(Analyzer analyzer){
+        this(analyzer, Paths.get("src/main/java/org/example/indices"),
+                Paths.get("src/main/java/corpus.jsonl.json"), Paths.get("src/main/java/results.csv"));
+    }
+
+    /**
+     * Vector on an index somewhere else than the default directories (e.g. benchmarks)
+     * @param analyzer same analyzer as the Indexer
+     * @param indexPath the index directory
+     * @param corpusPath the corpus the index was built from
+     * @param resultsPath the results file to write, null when no run is written
+     */
+    public Vector(Analyzer analyzer, Path indexPath, Path corpusPath, Path resultsPath){
+        this(analyzer, openReader(indexPath), corpusPath, resultsPath);
+    }
+
+    /**
+     * Vector on an already open reader, e.g. a MultiReader over the shards of a sharded index:
+     * the idf then comes from the statistics of every shard
+     * @param analyzer same analyzer as the Indexer
+     * @param indexReader the reader to search, closed with the Vector
+     * @param corpusPath the corpus the index was built from
+     * @param resultsPath the results file to write, null when no run is written
+     */
+    public Vector(Analyzer analyzer, IndexReader indexReader, Path corpusPath, Path resultsPath){
+        this.corpusPath = corpusPath;
+        this.indexReader = indexReader;
+        initialize(resultsPath);
         documentVector = new HashMap<>();
-        queryVector = new HashMap<>();
         TOTALDOCS = indexReader.numDocs();
         this.analyzer = analyzer;
-        this.corpusList = corpusList;
+        this.queryAnalyzer = new QueryAnalyzer(analyzer);
+        this.externalIds = loadExternalIds(indexReader);
+    }
+
+    /**
+     * Read the id of every document of a reader
+     * @param reader the reader searched
+     * @return the doc id -> corpus-id table
+     */
+    private static ExternalIds loadExternalIds(IndexReader reader){
+        try {
+            return ExternalIds.load(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the ids of the documents", e);
+        }
     }
 
     public void initialize(){
+        initialize(Paths.get("src/main/java/org/example/indices"), Paths.get("src/main/java/results.csv"));
+    }
+
+    private void initialize(Path indexPath, Path resultsPath){
+        indexReader = openReader(indexPath);
+        initialize(resultsPath);
+    }
+
+    private static IndexReader openReader(Path indexPath){
         try {
-            Directory directory = FSDirectory.open(Paths.get("src/main/java/org/example/indices"));
+            Directory directory = FSDirectory.open(indexPath);
             // Prepare reader
-            indexReader = DirectoryReader.open(directory);
+            return DirectoryReader.open(directory);
         }catch (IOException e){
             System.out.println("Error while opening file");
+            return null;
         }
+    }
 
+    private void initialize(Path resultsPath){
+        // No results file, e.g. a SearchServer answering ad-hoc queries
+        if (resultsPath == null){
+            return;
+        }
         try{
-            writer = Files.newBufferedWriter(Paths.get("src/main/java/results.csv"));
+            resultSink = ResultSink.fromSystemProperties(resultsPath);
         }catch (IOException e){
             System.out.println("Error while opening writer, did you forget to specify the file name?");
         }
@@ -76,24 +199,496 @@ public class Vector {
                 the weight of each term ( tf_idf(t, d) )
     */
     public Map<Integer, Map<String, Double>> buildDocumentVector(String field){
-        for (int i = 0; i < TOTALDOCS; i++) {
-            Map<String, Double> termsWeight = buildDocumentVectorHelper(i, field);
-            documentVector.put(i, termsWeight);
+        try {
+            TermVectors termVectors = indexReader.termVectors();
+            // Deleted documents keep their doc id, the live ones go up to maxDoc
+            Bits liveDocs = MultiBits.getLiveDocs(indexReader);
+            for (int i = 0; i < indexReader.maxDoc(); i++) {
+                if (liveDocs != null && !liveDocs.get(i)){
+                    continue;
+                }
+                Map<String, Double> termsWeight = buildDocumentVectorHelper(termVectors, i, field);
+                documentVector.put(i, termsWeight);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read the term vectors of field: " + field);
         }
         return documentVector;
     }
 
+    /**
+     * Method to build the packed document vector of every document, without going through
+     * per-posting boxed maps; the segments are built in parallel, see {@link ParallelStoreBuild}
+     * @param field Specify the which (Lucene) field to construct the vector
+     * @return The packed document vector, each row holding the normalized tf_idf(t, d) weights
+     */
+    public DocumentVectorStore buildDocumentStore(String field){
+        return ParallelStoreBuild.build(indexReader, field, idfTable(field), ParallelStoreBuild.threadsFromSystemProperties());
+    }
+
+    /**
+     * Build the packed document vectors of several fields together, reading each document's term vectors once
+     * @param fields the (Lucene) fields to construct the vectors of
+     * @return the packed document vector of each field, in the order of the fields
+     */
+    public DocumentVectorStore[] buildDocumentStores(String[] fields){
+        IdfTable[] idfTables = new IdfTable[fields.length];
+        for (int f = 0; f < fields.length; f++) {
+            idfTables[f] = idfTable(fields[f]);
+        }
+        return ParallelStoreBuild.build(indexReader, fields, idfTables, ParallelStoreBuild.threadsFromSystemProperties());
+    }
+
+    /**
+     * The idf table of a field, built with one pass over the field's terms the first time it is needed
+     * and rebuilt whenever the reader changed
+     * @param field the field
+     * @return the idf table of the field for the current reader
+     */
+    public IdfTable idfTable(String field){
+        IndexReader reader = indexReader;
+        // Every query asks for the table, a lock-free read serves it until the reader changes
+        IdfTable current = idfTables.get(field);
+        if (current != null && current.isCurrent(reader)){
+            return current;
+        }
+        // Missing or stale: rebuild once, the other threads asking meanwhile wait for it
+        return idfTables.compute(field, (f, table) -> {
+            if (table != null && table.isCurrent(reader)){
+                return table;
+            }
+            try {
+                return IdfTable.build(reader, f, TOTALDOCS, similarity);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read the terms of field: " + f, e);
+            }
+        });
+    }
+
+    /**
+     * Fill the scratch row with the normalized tf_idf weights of a document's term vector
+     * @param terms the term vector of the document
+     * @param idfTable the idf of the field
+     * @param dictionary the dictionary giving the term ids, new terms are added to it
+     * @param row the scratch row to fill
+     * @throws IOException if the term vector cannot be read
+     */
+    static void weighRow(Terms terms, IdfTable idfTable, TermDictionary dictionary,
+                          DocumentVectorStore.Row row) throws IOException {
+        row.clear();
+        double length = 0.0;
+        TermsEnum iterator = terms.iterator();
+        BytesRef term;
+        while ((term = iterator.next()) != null){
+            long frequency = iterator.totalTermFreq();
+            int idfId = idfTable.getDictionary().id(term);
+            double tf_idf = frequency * idfTable.idf(idfId);
+            // Same dictionary: the idf lookup already gave the id
+            int termId = dictionary == idfTable.getDictionary() && idfId >= 0 ? idfId : dictionary.add(term);
+            row.add(termId, (float) tf_idf);
+            length += tf_idf * tf_idf;
+        }
+        // Optimization: normalize the vector so the term stays informative in long text
+        length = Math.sqrt(length);
+        if (length > 0.0){
+            for (int i = 0; i < row.size(); i++) {
+                row.setWeight(i, (float) (row.weight(i) / length));
+            }
+        }
+    }
+
+    /**
+     * Pick up the segments written by an {@link IndexUpdater} without a restart, and update the document
+     * vector incrementally: rows of unchanged segments are copied, only the new documents and the documents
+     * containing a term whose document frequency changed are recomputed. With quantized scoring or static
+     * pruning the store no longer holds the full float rows, so every row is recomputed (and pruned again).
+     * The idf keeps the document count of the last full build, so a small delta does not shift every idf;
+     * run a full build to reset it.
+     * Not meant to run while queries are in flight on this Vector.
+     * @param updater the updater whose writer produced the new segments
+     * @param store the current document vector
+     * @return the updated document vector, the same store if nothing changed
+     * @throws IOException if the new reader or its term vectors cannot be read
+     */
+    public DocumentVectorStore refresh(IndexUpdater updater, DocumentVectorStore store) throws IOException {
+        SearcherManager manager = updater.getSearcherManager();
+        manager.maybeRefreshBlocking();
+        IndexSearcher searcher = manager.acquire();
+        DirectoryReader newReader;
+        try {
+            newReader = (DirectoryReader) searcher.getIndexReader();
+            if (newReader == indexReader){
+                return store;
+            }
+            // Keep the new reader open after releasing the searcher
+            newReader.incRef();
+        } finally {
+            manager.release(searcher);
+        }
+        IndexReader oldReader = indexReader;
+        String field = store.getField();
+        IdfTable oldIdf = idfTable(field);
+        IdfTable newIdf = IdfTable.build(newReader, field, TOTALDOCS, similarity);
+
+        // Segments are immutable, map the ones shared by both readers to their old doc base
+        Map<String, Integer> oldBases = new HashMap<>();
+        for (LeafReaderContext leaf : oldReader.leaves()) {
+            oldBases.put(segmentKey(leaf), leaf.docBase);
+        }
+
+        // Terms of the new documents and of the rows that disappeared may have a new document frequency
+        TermDictionary dictionary = store.getDictionary().copy();
+        Set<BytesRef> touched = new HashSet<>();
+        boolean[] oldLive = new boolean[store.maxDoc()];
+        for (LeafReaderContext leaf : newReader.leaves()) {
+            Integer oldBase = oldBases.get(segmentKey(leaf));
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)){
+                    continue;
+                }
+                if (oldBase != null){
+                    oldLive[oldBase + doc] = true;
+                    continue;
+                }
+                Terms terms = leaf.reader().termVectors().get(doc, field);
+                if (terms != null){
+                    TermsEnum iterator = terms.iterator();
+                    BytesRef term;
+                    while ((term = iterator.next()) != null){
+                        touched.add(BytesRef.deepCopyOf(term));
+                    }
+                }
+            }
+        }
+        BytesRef scratch = new BytesRef();
+        for (int docId = 0; docId < store.maxDoc(); docId++) {
+            if (!oldLive[docId]){
+                for (int i = store.start(docId); i < store.end(docId); i++) {
+                    touched.add(BytesRef.deepCopyOf(store.getDictionary().termBytes(store.termId(i), scratch)));
+                }
+            }
+        }
+        boolean[] changed = new boolean[dictionary.size()];
+        int changedTerms = 0;
+        for (BytesRef term : touched) {
+            int termId = dictionary.id(term);
+            if (termId >= 0 && oldIdf.docFreq(term) != newIdf.docFreq(term)){
+                changed[termId] = true;
+                changedTerms++;
+            }
+        }
+
+        // Swap the reader, the weights below read the new document frequencies
+        indexReader = newReader;
+        idfTables.put(field, newIdf);
+        DocumentVectorStore.Builder builder = new DocumentVectorStore.Builder(field, dictionary, newReader.maxDoc());
+        DocumentVectorStore.Row row = new DocumentVectorStore.Row();
+        // Without its float weights (quantized scoring), or with only the postings static pruning kept (a copied
+        // row would miss its dropped terms, and their new document frequencies), no row can be copied:
+        // every row is recomputed, and the whole store pruned again
+        boolean copyRows = store.hasWeights() && staticPruning == null;
+        int copied = 0;
+        int recomputed = 0;
+        for (LeafReaderContext leaf : newReader.leaves()) {
+            Integer oldBase = oldBases.get(segmentKey(leaf));
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            TermVectors termVectors = leaf.reader().termVectors();
+            for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)){
+                    continue;
+                }
+                if (copyRows && oldBase != null && !containsAny(store, oldBase + doc, changed)){
+                    builder.copyRow(leaf.docBase + doc, store, oldBase + doc);
+                    copied++;
+                    continue;
+                }
+                Terms terms = termVectors.get(doc, field);
+                if (terms != null){
+                    weighRow(terms, newIdf, dictionary, row);
+                    builder.addRow(leaf.docBase + doc, row);
+                }
+                recomputed++;
+            }
+        }
+        // New documents get their ids, and the doc ids of the old ones may have moved
+        externalIds = loadExternalIds(newReader);
+        oldReader.decRef();
+        System.out.println("Refreshed document vectors: " + copied + " copied, " + recomputed
+                + " recomputed, " + changedTerms + " terms with a new document frequency");
+        return quantize(prune(builder.build()));
+    }
+
+    /**
+     * The core cache key only matches between readers sharing the same segment reader, the segment name
+     * and its unique id also match between readers opened independently (e.g. from the directory and NRT)
+     */
+    private static String segmentKey(LeafReaderContext leaf){
+        LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+        if (reader instanceof SegmentReader segmentReader){
+            SegmentInfo info = segmentReader.getSegmentInfo().info;
+            return info.name + ":" + StringHelper.idToString(info.getId());
+        }
+        // Unknown reader, never considered shared
+        return "leaf@" + System.identityHashCode(reader);
+    }
+
+    // True if the row of the document holds any of the flagged term ids
+    private static boolean containsAny(DocumentVectorStore store, int docId, boolean[] flagged){
+        for (int i = store.start(docId); i < store.end(docId); i++) {
+            int termId = store.termId(i);
+            if (termId < flagged.length && flagged[termId]){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Memory-map the persisted document vector of the field if it matches the current index commit,
+     * otherwise build it and persist it for the next start
+     * The snapshot keeps every posting, the static pruning (see -Dvector.prune) applies after loading.
+     * With quantized scoring on (see -Dvector.quantized), the weights are quantized and the returned store
+     * has no float weights left, only its quantized copy is scored
+     * @param field Specify the which (Lucene) field to construct the vector
+     * @return The packed document vector
+     */
+    public DocumentVectorStore loadOrBuildDocumentStore(String field){
+        DirectoryReader directoryReader = (DirectoryReader) indexReader;
+        try {
+            DocumentVectorStore store = VectorSnapshot.load(directoryReader, field);
+            if (store != null){
+                System.out.println("Loaded document vectors from " + VectorSnapshot.pathFor(field));
+                return quantize(prune(store));
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to load the document vector snapshot, rebuilding");
+        }
+        DocumentVectorStore store = buildDocumentStore(field);
+        try {
+            VectorSnapshot.write(store, directoryReader);
+        } catch (IOException e) {
+            System.out.println("Unable to write the document vector snapshot");
+        }
+        return quantize(prune(store));
+    }
+
+    // Quantize the weights if quantized scoring is on and let the float ones go, only the quantized copy is scored
+    private DocumentVectorStore quantize(DocumentVectorStore store){
+        if (quantization == null || !store.hasWeights()){
+            return store;
+        }
+        QuantizedVectorStore quantized = quantizedStoreFor(store, quantization);
+        System.out.printf("Quantized %s to %s: %.1f MB instead of %.1f MB%n", store.getField(),
+                quantization.name().toLowerCase(Locale.ROOT), quantized.ramBytesUsed() / (1024.0 * 1024.0),
+                store.ramBytesUsed() / (1024.0 * 1024.0));
+        return quantized.getStore();
+    }
+
+    // Drop the low-weight postings if static pruning is on
+    private DocumentVectorStore prune(DocumentVectorStore store){
+        if (staticPruning == null){
+            return store;
+        }
+        DocumentVectorStore pruned = staticPruning.apply(store);
+        System.out.printf("Pruned %s to %s: %d of %d postings kept%n", store.getField(), staticPruning,
+                pruned.size(), store.size());
+        return pruned;
+    }
+
+    /**
+     * Compare static prunings of a store with the full store on the judged queries of test.csv, and print
+     * the memory of each pruned store, the term-at-a-time search time, the overlap of the top k with the
+     * unpruned top k, and how often a relevant document is still found in the top k
+     * @param store the packed document vector of the corpus, unpruned
+     * @param prunings the prunings to compare
+     * @param k how many results to compare per query
+     */
+    public void comparePruning(DocumentVectorStore store, List<StaticPruning> prunings, int k){
+        Qrels qrels = Qrels.shared();
+        List<Querry> queries = new ArrayList<>();
+        for (Querry query : readQueries()) {
+            if (!qrels.relevant(String.valueOf(query.getId())).isEmpty()){
+                queries.add(query);
+            }
+        }
+        QueryVector[] vectors = new QueryVector[queries.size()];
+        for (int q = 0; q < vectors.length; q++) {
+            vectors[q] = QueryVector.of(buildQueryVector(queries.get(q).getText(), store.getField()), store.getDictionary());
+        }
+        String[] corpusIds = new String[store.maxDoc()];
+        for (int docId = 0; docId < corpusIds.length; docId++) {
+            String id = externalIds.get(docId);
+            corpusIds[docId] = id == null ? null : id.replace("\"", "");
+        }
+
+        InvertedIndex full = InvertedIndex.build(store);
+        List<LinkedHashMap<Integer, Double>> reference = new ArrayList<>(vectors.length);
+        double fullMs = timeSearches(full, vectors, k, reference);
+        int fullFound = countFound(reference, queries, corpusIds, qrels);
+        int n = Math.max(1, vectors.length);
+        System.out.printf("%d judged queries, k = %d%n", vectors.length, k);
+        System.out.printf("%-12s %10s %7s %10s %10s %9s %10s %10s%n",
+                "pruning", "postings", "kept", "size (MB)", "ms/query", "speed-up", "overlap@" + k, "recall@" + k);
+        System.out.printf("%-12s %10d %6.1f%% %10.2f %10.3f %8.2fx %10s %9.1f%%%n", "none", store.size(), 100.0,
+                store.ramBytesUsed() / (1024.0 * 1024.0), fullMs, 1.0, "-", 100.0 * fullFound / n);
+        for (StaticPruning pruning : prunings) {
+            DocumentVectorStore pruned = pruning.apply(store);
+            List<LinkedHashMap<Integer, Double>> results = new ArrayList<>(vectors.length);
+            double ms = timeSearches(InvertedIndex.build(pruned), vectors, k, results);
+            double overlap = 0.0;
+            for (int q = 0; q < vectors.length; q++) {
+                Set<Integer> expected = reference.get(q).keySet();
+                long common = results.get(q).keySet().stream().filter(expected::contains).count();
+                overlap += expected.isEmpty() ? 1.0 : (double) common / expected.size();
+            }
+            System.out.printf("%-12s %10d %6.1f%% %10.2f %10.3f %8.2fx %9.1f%% %9.1f%%%n", pruning, pruned.size(),
+                    100.0 * pruned.size() / Math.max(1, store.size()), pruned.ramBytesUsed() / (1024.0 * 1024.0),
+                    ms, fullMs / ms, 100.0 * overlap / n, 100.0 * countFound(results, queries, corpusIds, qrels) / n);
+        }
+    }
+
+    // Search every query for half a second to warm up, then for at least another second timed;
+    // return the mean time of a search
+    private static double timeSearches(InvertedIndex index, QueryVector[] vectors, int k,
+                                       List<LinkedHashMap<Integer, Double>> results){
+        for (QueryVector vector : vectors) {
+            results.add(index.search(vector, k));
+        }
+        long warmUp = System.nanoTime() + 500_000_000L;
+        while (System.nanoTime() < warmUp){
+            for (QueryVector vector : vectors) {
+                index.search(vector, k);
+            }
+        }
+        long searches = 0;
+        long start = System.nanoTime();
+        long end;
+        do {
+            for (QueryVector vector : vectors) {
+                index.search(vector, k);
+            }
+            searches += vectors.length;
+            end = System.nanoTime();
+        } while (end - start < 1_000_000_000L);
+        return (end - start) / 1e6 / Math.max(1, searches);
+    }
+
+    // Number of queries with a relevant document in their results
+    private static int countFound(List<LinkedHashMap<Integer, Double>> results, List<Querry> queries,
+                                  String[] corpusIds, Qrels qrels){
+        int found = 0;
+        for (int q = 0; q < queries.size(); q++) {
+            List<String> relevant = qrels.relevant(String.valueOf(queries.get(q).getId()));
+            for (int docId : results.get(q).keySet()) {
+                if (relevant.contains(corpusIds[docId])){
+                    found++;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Memory-map the persisted document vectors of the fields that match the current index commit,
+     * build the others together in one pass and persist them for the next start
+     * @param fields the (Lucene) fields to construct the vectors of
+     * @return the packed document vector of each field, in the order of the fields
+     */
+    public DocumentVectorStore[] loadOrBuildDocumentStores(String[] fields){
+        DirectoryReader directoryReader = (DirectoryReader) indexReader;
+        DocumentVectorStore[] stores = new DocumentVectorStore[fields.length];
+        List<String> missing = new ArrayList<>();
+        for (int f = 0; f < fields.length; f++) {
+            try {
+                stores[f] = VectorSnapshot.load(directoryReader, fields[f]);
+            } catch (IOException e) {
+                System.out.println("Unable to load the document vector snapshot of " + fields[f] + ", rebuilding");
+            }
+            if (stores[f] == null){
+                missing.add(fields[f]);
+            }else {
+                System.out.println("Loaded document vectors from " + VectorSnapshot.pathFor(fields[f]));
+            }
+        }
+        if (missing.isEmpty()){
+            return stores;
+        }
+        DocumentVectorStore[] built = buildDocumentStores(missing.toArray(new String[0]));
+        for (int f = 0, m = 0; f < fields.length; f++) {
+            if (stores[f] != null){
+                continue;
+            }
+            stores[f] = built[m++];
+            try {
+                VectorSnapshot.write(stores[f], directoryReader);
+            } catch (IOException e) {
+                System.out.println("Unable to write the document vector snapshot of " + fields[f]);
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * Build the weighted multi-field index of the fields
+     * @param fieldWeights the weight of each field, see {@link MultiFieldIndex#parseFields}
+     * @return the multi-field index of the current reader
+     */
+    public MultiFieldIndex buildMultiFieldIndex(LinkedHashMap<String, Double> fieldWeights){
+        long start = System.currentTimeMillis();
+        String[] fields = fieldWeights.keySet().toArray(new String[0]);
+        DocumentVectorStore[] stores = loadOrBuildDocumentStores(fields);
+        IdfTable[] idfTables = new IdfTable[fields.length];
+        for (int f = 0; f < fields.length; f++) {
+            idfTables[f] = idfTable(fields[f]);
+        }
+        // Only the postings are kept, the stores can go
+        MultiFieldIndex index = MultiFieldIndex.build(fieldWeights, stores, idfTables);
+        System.out.printf("Built the %s index: %d postings, %.1f MB in %d ms%n", fieldWeights,
+                index.size(), index.ramBytesUsed() / (1024.0 * 1024.0), System.currentTimeMillis() - start);
+        return index;
+    }
+
+    /**
+     * Build the per-shard document vectors of a sharded index in parallel, all weighted with the global idf.
+     * The reader of this Vector must be a MultiReader over the shards, in shard order
+     * @param field Specify the which (Lucene) field to construct the vectors
+     * @return the scatter-gather index over the shards
+     */
+    public ShardedIndex buildShardedIndex(String field){
+        long start = System.currentTimeMillis();
+        // The idf of the MultiReader sums the document frequencies of every shard
+        IdfTable idfTable = idfTable(field);
+        List<IndexReaderContext> shards = indexReader.getContext().children();
+        List<CompletableFuture<InvertedIndex>> builds = new ArrayList<>();
+        for (IndexReaderContext shard : shards) {
+            IndexReader reader = shard.reader();
+            builds.add(CompletableFuture.supplyAsync(
+                    () -> InvertedIndex.build(ParallelStoreBuild.build(reader, field, idfTable, 1))));
+        }
+        InvertedIndex[] indexes = new InvertedIndex[shards.size()];
+        int[] docBases = new int[shards.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = builds.get(i).join();
+            docBases[i] = shards.get(i).docBaseInParent;
+        }
+        ShardedIndex index = new ShardedIndex(indexes, docBases);
+        System.out.printf("Built the document vectors of %d shards in %d ms, %.1f MB%n", index.size(),
+                System.currentTimeMillis() - start, index.ramBytesUsed() / (1024.0 * 1024.0));
+        return index;
+    }
+
     /**
      * Helper method to construct document vector for each document
+     * @param termVectors the term vectors of the index, opened once for all the documents
      * @param docID Specify which document vector is being built
      * @param field The field to build con
      * @return The map of each term and its tf_idf value
      * @throws IOException if the index didn't store the term vectors
      */
-    private Map<String, Double> buildDocumentVectorHelper(int docID, String field){
+    private Map<String, Double> buildDocumentVectorHelper(TermVectors termVectors, int docID, String field){
         try {
-            // Get all term vectors
-            TermVectors termVectors = indexReader.termVectors();
             // Get all the terms in this document
             Terms terms = termVectors.get(docID, field);
             if(terms == null){
@@ -108,10 +703,8 @@ public class Vector {
                 String s = iterator.term().utf8ToString();
                 // Calculate the term frequency tf(t)
                 long frequency = iterator.totalTermFreq();
-                // Calculate the document frequency Df(t)
-                int df = indexReader.docFreq(new Term(field, s));
-                // Calculate idf
-                double idf = similarity.idf(df, TOTALDOCS);
+                // Look up idf from the cached Df(t) of the field
+                double idf = idfTable(field).idf(iterator.term());
                 // Calculate tf_idf
                 double tf_idf = frequency * idf;
 
@@ -138,236 +731,943 @@ public class Vector {
      */
     public Map<String, Double> buildQueryVector(String query, String field){
         try {
-            // Retrieve tokenized query
-            List<String> tokens = tokenizeQuery(query);
-            System.out.println("Query: " + query);
+            // Calculate tf(t, q) in one pass over the tokens
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String token : tokenizeQuery(query)) {
+                frequencies.merge(token, 1, Integer::sum);
+            }
+            // Local map, several queries may be built at the same time
+            Map<String, Double> queryVector = new HashMap<>();
+            IdfTable idfTable = idfTable(field);
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                // Calculate tf_idf with the cached idf of the field
+                queryVector.put(entry.getKey(), entry.getValue() * idfTable.idf(entry.getKey()));
+            }
+            // Optimization: normalize the vector so the term stays informative in long text
+            return normalizeVector(queryVector);
+        } catch (UncheckedIOException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Build the query vector of a query without a map or a token list
+     * @param query the query text
+     * @param field the field to search
+     * @param store the packed document vector to search, gives the term ids
+     * @return a new normalized query vector
+     */
+    public QueryVector buildQueryVector(String query, String field, DocumentVectorStore store){
+        return queryAnalyzer.analyze(query, idfTable(field), store.getDictionary());
+    }
 
-            // Calculate each token's tf_idf
-            for(String token: tokens){
-                // Calculate tf(t, q)
-                long frequency = tokens.stream().filter(t -> t.equals(token)).count();
+    // Take an idle query vector, give it back to idleQueryVectors once the query is scored
+    private QueryVector acquireQueryVector(){
+        QueryVector vector = idleQueryVectors.poll();
+        return vector == null ? new QueryVector() : vector;
+    }
 
-                // Calculate Df(t)
-                int df = indexReader.docFreq(new Term(field, token));
-                // Calculate idf
-                double idf = similarity.idf(df, TOTALDOCS);
+    // Take idle query vectors for several fields, give them back to idleFieldVectors once the query is scored
+    private QueryVector[] acquireFieldVectors(int fields){
+        QueryVector[] vectors = idleFieldVectors.poll();
+        if (vectors == null || vectors.length < fields){
+            vectors = new QueryVector[fields];
+            for (int i = 0; i < fields; i++) {
+                vectors[i] = new QueryVector();
+            }
+        }
+        return vectors;
+    }
 
-                // Calculate tf_idf
-                double tf_idf = (frequency) * idf;
-                queryVector.put(token, tf_idf);
+    /**
+     * Method for tokenizing query
+     * @param query The query to be tokenized
+     * @return the tokenized query
+     */
+    private List<String> tokenizeQuery(String query){
+        // Get the token stream of the analyzer
+        try(TokenStream tokenStream = analyzer.tokenStream(null, query)){
+            List<String> tokens = new ArrayList<>();
+            // Add the char term attribute to the stream
+            CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()){
+                // Add the token
+                tokens.add(charTermAttribute.toString());
+            }
+            tokenStream.end();
+            return tokens;
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Method to compute the Cosine Similarity between each document and the query
+     * @param documentVector the document vector of the corpus
+     * @param queryVector the query vector to compute with
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> computeCosineSimilarity(Map<Integer, Map<String, Double>> documentVector,
+                                        Map<String, Double> queryVector){
+        // To be returned
+        Map<Integer, Double> similarities = new HashMap<>();
+        // Loop through the document vectors to compute
+        for(Map.Entry<Integer, Map<String, Double>> mapEntry: documentVector.entrySet()){
+            // Get each document's document vector
+            Map<String, Double> value = mapEntry.getValue();
+            // Compute
+            double cosineSimilarity = cosineSimilarityHelper(value, queryVector);
+            // Filter unrelated fields
+            if(cosineSimilarity > 0.0) {
+                // Add to the result
+                similarities.put(mapEntry.getKey(), cosineSimilarity);
+            }
+        }
+        LinkedHashMap<Integer, Double> sortedSimilarities = new LinkedHashMap<>();
+        // Sort the docs in descending order
+        similarities.entrySet().stream()
+                .sorted((a, b) -> Double.compare(b.getValue(), a.getValue()))
+                .forEachOrdered(entry -> sortedSimilarities.put(entry.getKey(), entry.getValue()));
+        return sortedSimilarities;
+    }
+
+    /**
+     * Method to compute the top k Cosine Similarities, only walking the postings of the query terms
+     * @param documentVector the document vector of the corpus
+     * @param queryVector the query vector to compute with
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> computeCosineSimilarity(Map<Integer, Map<String, Double>> documentVector,
+                                        Map<String, Double> queryVector, int k){
+        if (invertedIndex == null || invertedVector != documentVector){
+            // Invert once per document vector, later queries reuse it
+            invertedIndex = InvertedIndex.build(documentVector);
+            invertedVector = documentVector;
+        }
+        return invertedIndex.search(queryVector, k);
+    }
+
+    /**
+     * Method to compute the top k Cosine Similarities on the packed document vector,
+     * only walking the postings of the query terms (with MaxScore pruning if enabled)
+     * @param store the packed document vector of the corpus
+     * @param queryVector the query vector to compute with
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> computeCosineSimilarity(DocumentVectorStore store,
+                                        Map<String, Double> queryVector, int k){
+        return computeCosineSimilarity(store, QueryVector.of(queryVector, store.getDictionary()), k);
+    }
+
+    /**
+     * Method to compute the top k Cosine Similarities on the packed document vector,
+     * only walking the postings of the query terms (with MaxScore pruning if enabled)
+     * @param store the packed document vector of the corpus
+     * @param queryVector the query vector to compute with, resolved against the store's dictionary
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> computeCosineSimilarity(DocumentVectorStore store,
+                                        QueryVector queryVector, int k){
+        InvertedIndex index = invertedIndexFor(store);
+        return pruning ? index.searchMaxScore(queryVector, k) : index.search(queryVector, k);
+    }
+
+    /**
+     * Invert the store once, later queries (from any thread) reuse it
+     * @param store the packed document vector of the corpus
+     * @return the inverted index of the store
+     */
+    private synchronized InvertedIndex invertedIndexFor(DocumentVectorStore store){
+        if (invertedIndex == null || invertedIndex.getStore() != store){
+            invertedIndex = InvertedIndex.build(store);
+            invertedVector = null;
+        }
+        return invertedIndex;
+    }
+
+    /**
+     * Quantize the store once, later queries (from any thread) reuse it
+     * @param store the packed document vector of the corpus
+     * @param encoding how to encode the weights
+     * @return the quantized store
+     */
+    private synchronized QuantizedVectorStore quantizedStoreFor(DocumentVectorStore store,
+                                                              QuantizedVectorStore.Encoding encoding){
+        if (quantizedStore == null || !quantizedStore.quantizes(store) || quantizedStore.getEncoding() != encoding){
+            quantizedStore = QuantizedVectorStore.build(store, encoding);
+        }
+        return quantizedStore;
+    }
+
+    /**
+     * Compare the exhaustive scoring of every quantized encoding with the double-precision scan of the float store
+     * on every query of queries.json, and print the heap of each mode, the scan time and the ranking difference
+     * @param store the packed document vector of the corpus
+     * @param k how many results to compare per query
+     */
+    public void compareQuantized(DocumentVectorStore store, int k){
+        String field = store.getField();
+        List<Querry> queries = readQueries();
+        QueryVector[] vectors = new QueryVector[queries.size()];
+        for (int q = 0; q < vectors.length; q++) {
+            vectors[q] = QueryVector.of(buildQueryVector(queries.get(q).getText(), field), store.getDictionary());
+        }
+        List<LinkedHashMap<Integer, Double>> reference = new ArrayList<>(vectors.length);
+        // Warm-up pass first, so every path is timed compiled
+        for (QueryVector vector : vectors) {
+            scanCosineSimilarity(store, vector, k);
+        }
+        long start = System.nanoTime();
+        for (QueryVector vector : vectors) {
+            reference.add(scanCosineSimilarity(store, vector, k));
+        }
+        double referenceMs = (System.nanoTime() - start) / 1e6 / Math.max(1, vectors.length);
+        // Everything the float scan keeps: weights, term ids, offsets, lengths and dictionary
+        long referenceBytes = store.ramBytesUsed();
+
+        System.out.printf("%-8s %12s %10s %10s %10s %10s %12s%n",
+                "weights", "heap (MB)", "ms/query", "overlap@" + k, "same top1", "same top" + k, "max |error|");
+        System.out.printf("%-8s %12.2f %10.3f %10s %10s %10s %12s%n",
+                "float32", referenceBytes / (1024.0 * 1024.0), referenceMs, "-", "-", "-", "-");
+        for (QuantizedVectorStore.Encoding encoding : QuantizedVectorStore.Encoding.values()) {
+            QuantizedVectorStore quantized = QuantizedVectorStore.build(store, encoding);
+            List<LinkedHashMap<Integer, Double>> results = new ArrayList<>(vectors.length);
+            for (QueryVector vector : vectors) {
+                quantized.search(vector, k);
             }
+            start = System.nanoTime();
+            for (QueryVector vector : vectors) {
+                results.add(quantized.search(vector, k));
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / Math.max(1, vectors.length);
+
+            double overlap = 0.0;
+            int sameTop1 = 0;
+            int sameRanking = 0;
+            double maxError = 0.0;
+            for (int q = 0; q < vectors.length; q++) {
+                List<Integer> expected = new ArrayList<>(reference.get(q).keySet());
+                List<Integer> actual = new ArrayList<>(results.get(q).keySet());
+                Set<Integer> common = new HashSet<>(expected);
+                common.retainAll(actual);
+                overlap += expected.isEmpty() ? 1.0 : (double) common.size() / expected.size();
+                if (expected.isEmpty() ? actual.isEmpty() : !actual.isEmpty() && expected.get(0).equals(actual.get(0))){
+                    sameTop1++;
+                }
+                if (expected.equals(actual)){
+                    sameRanking++;
+                }
+                for (Map.Entry<Integer, Double> hit : results.get(q).entrySet()) {
+                    Double exact = reference.get(q).get(hit.getKey());
+                    if (exact != null){
+                        maxError = Math.max(maxError, Math.abs(exact - hit.getValue()));
+                    }
+                }
+            }
+            int n = Math.max(1, vectors.length);
+            System.out.printf("%-8s %12.2f %10.3f %9.1f%% %9.1f%% %9.1f%% %12.2e  (%.1fx smaller)%n",
+                    encoding.name().toLowerCase(Locale.ROOT), quantized.ramBytesUsed() / (1024.0 * 1024.0), ms,
+                    100.0 * overlap / n, 100.0 * sameTop1 / n, 100.0 * sameRanking / n, maxError,
+                    (double) referenceBytes / quantized.ramBytesUsed());
+        }
+    }
+
+    /**
+     * Method to compute the top k Cosine Similarities by scoring every packed document vector
+     * @param store the packed document vector of the corpus
+     * @param queryVector the query vector to compute with
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> scanCosineSimilarity(DocumentVectorStore store,
+                                        Map<String, Double> queryVector, int k){
+        return scanCosineSimilarity(store, QueryVector.of(queryVector, store.getDictionary()), k);
+    }
+
+    /**
+     * Method to compute the top k Cosine Similarities by scoring every packed document vector
+     * @param store the packed document vector of the corpus
+     * @param queryVector the query vector to compute with, resolved against the store's dictionary
+     * @param k how many results to keep
+     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     */
+    public LinkedHashMap<Integer, Double> scanCosineSimilarity(DocumentVectorStore store,
+                                        QueryVector queryVector, int k){
+        store.requireWeights();
+        long start = QueryMetrics.start();
+        ScoreHeap heap = new ScoreHeap(k);
+        for (int docId = 0; docId < store.maxDoc(); docId++) {
+            double cosineSimilarity = store.cosineSimilarity(docId, queryVector);
+            // Filter unrelated fields
+            if (cosineSimilarity > 0.0){
+                heap.offer(docId, cosineSimilarity);
+            }
+        }
+        QueryMetrics.record(QueryMetrics.Stage.SCORING, start);
+        QueryMetrics.add(QueryMetrics.Counter.DOCUMENTS_TOUCHED, store.maxDoc());
+        QueryMetrics.add(QueryMetrics.Counter.POSTINGS_SCORED, store.size());
+        start = QueryMetrics.start();
+        LinkedHashMap<Integer, Double> similarities = heap.drainDescending();
+        QueryMetrics.record(QueryMetrics.Stage.TOP_K, start);
+        return similarities;
+    }
+
+    /**
+     * Helper method to compute a single document vector with the query vector
+     * @param dv document vector
+     * @param qv query vector
+     * @return the Cosine Similarity between the vectors
+     */
+    public double cosineSimilarityHelper(Map<String, Double> dv, Map<String, Double> qv){
+        double dotProduct = 0.0;
+        // For later calculate the Euclidean length
+        double euclideanLength_query = 0.0;
+        double euclideanLength_document = 0.0;
+
+        // Loop through the query vector to find the related fields
+        for(Map.Entry<String, Double> entry : qv.entrySet()){
+            String term = entry.getKey();
+            double query_ifidf = entry.getValue();
+            // If not in the dv, simply assign 0
+            double document_tfidf = dv.getOrDefault(term, 0.0);
+            dotProduct += query_ifidf * document_tfidf;
+            // Euclidean length (without square root) for query vector
+            euclideanLength_query += Math.pow(query_ifidf, 2);
+        }
+
+        // Euclidean length (without square root) for document vector
+        for(Map.Entry<String, Double> entry : dv.entrySet()){
+            double normalized_tfidf = entry.getValue();
+            euclideanLength_document += Math.pow(normalized_tfidf, 2);
+        }
+
+        // Euclidean length
+        double euclideanLength = Math.sqrt(euclideanLength_query)
+                                * Math.sqrt(euclideanLength_document);
+
+        // Cosine Similarity
+        return dotProduct / euclideanLength;
+    }
+
+    /**
+     * Perform the test on a single query from the corpus
+     * @param query the query to be tested
+     * @param dv document vector
+     * @param limit indicates how many results to be showed (descending order)
+     * @param ifClose false when running multiple queries together
+     */
+    public void runSingleQuery(Querry query, Map<Integer, Map<String, Double>> dv,
+                               int limit, String field, boolean ifClose){
+        // Build the qv for the current query
+        Map<String, Double> qv = buildQueryVector(query.getText(), field);
+        // Sorted similarities
+        LinkedHashMap<Integer, Double> similarities = termAtATime
+                ? computeCosineSimilarity(dv, qv, limit)
+                : computeCosineSimilarity(dv, qv);
+        reportResults(query, similarities, limit, ifClose);
+    }
+
+    /**
+     * Perform the test on a single query from the corpus, using the packed document vector
+     * @param query the query to be tested
+     * @param store packed document vector
+     * @param limit indicates how many results to be showed (descending order)
+     * @param ifClose false when running multiple queries together
+     */
+    public void runSingleQuery(Querry query, DocumentVectorStore store,
+                               int limit, String field, boolean ifClose){
+        emitResult(searchQuery(query, store, limit, field));
+        if(ifClose){
+            closeAll();
+        }
+    }
+
+    /**
+     * Search a single query without writing anything, safe to call from several threads
+     * @param query the query to be tested
+     * @param store packed document vector
+     * @param limit indicates how many results to be kept (descending order)
+     * @param field the field to search
+     * @return the ranked results of the query
+     */
+    public QueryResult searchQuery(Querry query, DocumentVectorStore store, int limit, String field){
+        long queryStart = QueryMetrics.start();
+        QueryResultCache.Hits hits = search(query, query.getText(), store, limit, field);
+        QueryResult result = evaluate(query, hits, limit);
+        if (reranker != null){
+            long start = QueryMetrics.start();
+            result = reranker.rerank(result);
+            QueryMetrics.record(QueryMetrics.Stage.RERANK, start);
+        }
+        QueryMetrics.record(QueryMetrics.Stage.QUERY, queryStart);
+        QueryMetrics.add(QueryMetrics.Counter.QUERIES, 1);
+        return result;
+    }
+
+    /**
+     * Search a block of queries together, safe to call from several threads.
+     * The queries missing from the cache are scored in one pass over the postings of their terms, see
+     * {@link InvertedIndex#searchBatch}; the ranking of every query is the same as with {@link #searchQuery}.
+     * Falls back to one query at a time with the hybrid retrieval, the quantized scan, MaxScore pruning or
+     * the document-at-a-time scan, which do not walk the postings term by term
+     * @param queries the queries to be tested
+     * @param store packed document vector
+     * @param limit indicates how many results to be kept per query (descending order)
+     * @param field the field to search
+     * @return the ranked results of each query, in the order of the queries
+     */
+    public List<QueryResult> searchQueries(List<Querry> queries, DocumentVectorStore store, int limit, String field){
+        if (queryEmbeddings != null || quantization != null || pruning || !termAtATime){
+            List<QueryResult> results = new ArrayList<>(queries.size());
+            for (Querry query : queries) {
+                results.add(searchQuery(query, store, limit, field));
+            }
+            return results;
+        }
+        long queryStart = QueryMetrics.start();
+        IndexReader reader = indexReader;
+        int n = queries.size();
+        QueryResultCache.Hits[] hits = new QueryResultCache.Hits[n];
+        String[] keys = new String[n];
+        // The queries to score, their vectors go back to the pool once the block is scored
+        List<QueryVector> misses = new ArrayList<>(n);
+        int[] missAt = new int[n];
+        IdfTable idfTable = idfTable(field);
+        for (int i = 0; i < n; i++) {
+            long start = QueryMetrics.start();
+            QueryVector qv = queryAnalyzer.analyze(queries.get(i).getText(), idfTable, store.getDictionary(),
+                    acquireQueryVector());
+            QueryMetrics.record(QueryMetrics.Stage.QUERY_VECTOR, start);
+            if (resultCache != null){
+                keys[i] = QueryResultCache.key(qv, field, limit);
+                hits[i] = resultCache.get(keys[i], reader, store);
+            }
+            if (hits[i] == null){
+                missAt[misses.size()] = i;
+                misses.add(qv);
+            }else {
+                idleQueryVectors.offer(qv);
+            }
+        }
+        if (!misses.isEmpty()){
+            List<LinkedHashMap<Integer, Double>> similarities = invertedIndexFor(store)
+                    .searchBatch(misses.toArray(new QueryVector[0]), limit);
+            idleQueryVectors.addAll(misses);
+            for (int j = 0; j < similarities.size(); j++) {
+                int i = missAt[j];
+                hits[i] = rank(similarities.get(j), limit);
+                if (resultCache != null){
+                    resultCache.put(keys[i], hits[i], reader, store);
+                }
+            }
+        }
+        List<QueryResult> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            QueryResult result = evaluate(queries.get(i), hits[i], limit);
+            if (reranker != null){
+                long start = QueryMetrics.start();
+                result = reranker.rerank(result);
+                QueryMetrics.record(QueryMetrics.Stage.RERANK, start);
+            }
+            // Every query of the block waits for the whole block
+            QueryMetrics.record(QueryMetrics.Stage.QUERY, queryStart);
+            QueryMetrics.add(QueryMetrics.Counter.QUERIES, 1);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Search an ad-hoc query text, safe to call from several threads (e.g. the requests of the SearchServer).
+     * The text has no query id, so there is no expected answer to check, no embedding and no re-ranking
+     * @param text the query text
+     * @param store the packed document vector of the field
+     * @param limit how many results to keep
+     * @param field the field searched
+     * @return the ranked hits, best first
+     */
+    public QueryResultCache.Hits search(String text, DocumentVectorStore store, int limit, String field){
+        long queryStart = QueryMetrics.start();
+        QueryResultCache.Hits hits = search(null, text, store, limit, field);
+        QueryMetrics.record(QueryMetrics.Stage.QUERY, queryStart);
+        QueryMetrics.add(QueryMetrics.Counter.QUERIES, 1);
+        return hits;
+    }
+
+    // Rank the hits of a query text, served from the cache when possible; query is null for ad-hoc text
+    private QueryResultCache.Hits search(Querry query, String text, DocumentVectorStore store, int limit, String field){
+        long start = QueryMetrics.start();
+        IndexReader reader = indexReader;
+        // Build the qv for the current query
+        QueryVector qv = queryAnalyzer.analyze(text, idfTable(field), store.getDictionary(), acquireQueryVector());
+        QueryMetrics.record(QueryMetrics.Stage.QUERY_VECTOR, start);
+        try {
+            // The hybrid ranking also depends on the query embedding, not only on the query vector
+            boolean hybrid = queryEmbeddings != null && query != null;
+            QueryResultCache cache = hybrid ? null : resultCache;
+            String key = cache == null ? null : QueryResultCache.key(qv, field, limit);
+            QueryResultCache.Hits hits = cache == null ? null : cache.get(key, reader, store);
+            if (hits == null){
+                // Sorted similarities
+                LinkedHashMap<Integer, Double> similarities = hybrid
+                        ? hybridSearch(query, store, qv, limit)
+                        : sparseSearch(store, qv, limit);
+                hits = rank(similarities, limit);
+                if (cache != null){
+                    cache.put(key, hits, reader, store);
+                }
+            }
+            return hits;
+        } finally {
+            idleQueryVectors.offer(qv);
+        }
+    }
+
+    /**
+     * Search a single query on every shard in parallel, safe to call from several threads.
+     * The results are not cached, the cache is keyed on a single store
+     * @param query the query to be tested
+     * @param index the sharded index
+     * @param limit indicates how many results to be kept (descending order)
+     * @param field the field to search
+     * @return the ranked results of the query
+     */
+    public QueryResult searchQuery(Querry query, ShardedIndex index, int limit, String field){
+        long queryStart = QueryMetrics.start();
+        long start = QueryMetrics.start();
+        // Resolved once against the global dictionary, shared by every shard
+        QueryVector qv = queryAnalyzer.analyze(query.getText(), idfTable(field), index.getDictionary(),
+                acquireQueryVector());
+        QueryMetrics.record(QueryMetrics.Stage.QUERY_VECTOR, start);
+        LinkedHashMap<Integer, Double> similarities;
+        try {
+            similarities = queryEmbeddings != null
+                    ? hybridSearch(query, () -> index.search(qv, limit), limit)
+                    : index.search(qv, limit);
+        } finally {
+            idleQueryVectors.offer(qv);
+        }
+        QueryResult result = evaluate(query, rank(similarities, limit), limit);
+        if (reranker != null){
+            start = QueryMetrics.start();
+            result = reranker.rerank(result);
+            QueryMetrics.record(QueryMetrics.Stage.RERANK, start);
+        }
+        QueryMetrics.record(QueryMetrics.Stage.QUERY, queryStart);
+        QueryMetrics.add(QueryMetrics.Counter.QUERIES, 1);
+        return result;
+    }
+
+    /**
+     * Search a single query on several fields at once, safe to call from several threads.
+     * The results are not cached, the cache is keyed on a single field's store
+     * @param query the query to be tested
+     * @param index the multi-field index
+     * @param limit indicates how many results to be kept (descending order)
+     * @return the ranked results of the query
+     */
+    public QueryResult searchQuery(Querry query, MultiFieldIndex index, int limit){
+        long queryStart = QueryMetrics.start();
+        long start = QueryMetrics.start();
+        // Tokenize once, one query vector per field
+        QueryVector[] qvs = queryAnalyzer.analyze(query.getText(), index.getIdfTables(), index.getDictionaries(),
+                acquireFieldVectors(index.getIdfTables().length));
+        QueryMetrics.record(QueryMetrics.Stage.QUERY_VECTOR, start);
+        LinkedHashMap<Integer, Double> similarities;
+        try {
+            similarities = queryEmbeddings != null
+                    ? hybridSearch(query, () -> index.search(qvs, limit), limit)
+                    : index.search(qvs, limit);
+        } finally {
+            idleFieldVectors.offer(qvs);
+        }
+        QueryResult result = evaluate(query, rank(similarities, limit), limit);
+        if (reranker != null){
+            start = QueryMetrics.start();
+            result = reranker.rerank(result);
+            QueryMetrics.record(QueryMetrics.Stage.RERANK, start);
+        }
+        QueryMetrics.record(QueryMetrics.Stage.QUERY, queryStart);
+        QueryMetrics.add(QueryMetrics.Counter.QUERIES, 1);
+        return result;
+    }
+
+    private LinkedHashMap<Integer, Double> sparseSearch(DocumentVectorStore store, QueryVector qv, int limit){
+        if (quantization != null){
+            return quantizedStoreFor(store, quantization).search(qv, limit);
+        }
+        return termAtATime
+                ? computeCosineSimilarity(store, qv, limit)
+                : scanCosineSimilarity(store, qv, limit);
+    }
+
+    /**
+     * Run the HNSW kNN search and the tf-idf search of a query at the same time and merge them
+     * with reciprocal rank fusion. Queries without an embedding only use the tf-idf ranking
+     * @param query the query
+     * @param store the packed document vector of the corpus
+     * @param qv the query vector
+     * @param limit how many results to keep from each ranking and after the fusion
+     * @return the fused ranking where the key is document id and the value is the fused score
+     */
+    public LinkedHashMap<Integer, Double> hybridSearch(Querry query, DocumentVectorStore store,
+                                                       QueryVector qv, int limit){
+        return hybridSearch(query, () -> sparseSearch(store, qv, limit), limit);
+    }
 
-            // Optimization: normalize the vector so the term stays informative in long text
-            Map<String, Double> stringDoubleMap = normalizeVector(queryVector);
-            // Store in a separate map to be returned
-            Map<String, Double> result = new HashMap<>(stringDoubleMap);
-            // Clear the map for next round calculation
-            queryVector.clear();
-            return result;
-        } catch (IOException e) {
-            return Collections.emptyMap();
+    /**
+     * Run the HNSW kNN search of a query while a sparse search runs on the calling thread, then fuse them
+     * @param query the query
+     * @param sparseSearch the sparse ranking of the query
+     * @param limit how many results to keep from each ranking and after the fusion
+     * @return the fused ranking where the key is document id and the value is the fused score
+     */
+    private LinkedHashMap<Integer, Double> hybridSearch(Querry query, Supplier<LinkedHashMap<Integer, Double>> sparseSearch,
+                                                        int limit){
+        int row = queryEmbeddings.row(Integer.toString(query.getId()));
+        if (row < 0){
+            return sparseSearch.get();
         }
+        float[] target = queryEmbeddings.vector(row, new float[queryEmbeddings.dimension()]);
+        IndexReader reader = indexReader;
+        CompletableFuture<LinkedHashMap<Integer, Double>> dense =
+                CompletableFuture.supplyAsync(() -> knnSearch(reader, target, limit), knnExecutor);
+        LinkedHashMap<Integer, Double> sparse = sparseSearch.get();
+        return reciprocalRankFusion(List.of(sparse, dense.join()), limit);
     }
 
     /**
-     * Method for tokenizing query
-     * @param query The query to be tokenized
-     * @return the tokenized query
+     * Approximate nearest neighbours of a query embedding on the HNSW graph of the index
+     * @param reader the reader to search
+     * @param target the query embedding
+     * @param k how many neighbours to find
+     * @return the neighbours, closest first, where the key is document id and the value is the vector similarity
      */
-    private List<String> tokenizeQuery(String query){
-        // Get the token stream of the analyzer
-        try(TokenStream tokenStream
-                    = analyzer.tokenStream(null, new StringReader(query))){
-            List<String> tokens = new LinkedList<>();
-            // Add the char term attribute to the stream
-            CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-            tokenStream.reset();
-            while (tokenStream.incrementToken()){
-                // Add the token
-                tokens.add(charTermAttribute.toString());
+    public LinkedHashMap<Integer, Double> knnSearch(IndexReader reader, float[] target, int k){
+        long start = QueryMetrics.start();
+        LinkedHashMap<Integer, Double> neighbours = new LinkedHashMap<>();
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (ScoreDoc hit : searcher.search(new KnnFloatVectorQuery(Indexer.EMBEDDING_FIELD, target, k), k).scoreDocs) {
+                neighbours.put(hit.doc, (double) hit.score);
             }
-            tokenStream.end();
-            return tokens;
         } catch (IOException e) {
-            return Collections.emptyList();
+            throw new UncheckedIOException("Unable to run the kNN search", e);
         }
+        QueryMetrics.record(QueryMetrics.Stage.KNN, start);
+        return neighbours;
     }
 
     /**
-     * Method to compute the Cosine Similarity between each document and the query
-     * @param documentVector the document vector of the corpus
-     * @param queryVector the query vector to compute with
-     * @return the sorted Cosine Similarity map where the key is document id and the value is the similarity of the document
+     * Merge rankings with reciprocal rank fusion: each document scores the sum of 1 / (k + rank)
+     * over the rankings it appears in (-Dvector.rrf.k, default 60)
+     * @param rankings the rankings to merge, best first
+     * @param limit how many documents to keep
+     * @return the fused ranking, best first, ties go to the lower document id
      */
-    public LinkedHashMap<Integer, Double> computeCosineSimilarity(Map<Integer, Map<String, Double>> documentVector,
-                                        Map<String, Double> queryVector){
-        // To be returned
-        Map<Integer, Double> similarities = new HashMap<>();
-        // Loop through the document vectors to compute
-        for(Map.Entry<Integer, Map<String, Double>> mapEntry: documentVector.entrySet()){
-            // Get each document's document vector
-            Map<String, Double> value = mapEntry.getValue();
-            // Compute
-            double cosineSimilarity = cosineSimilarityHelper(value, queryVector);
-            // Filter unrelated fields
-            if(cosineSimilarity > 0.0) {
-                // Add to the result
-                similarities.put(mapEntry.getKey(), cosineSimilarity);
+    static LinkedHashMap<Integer, Double> reciprocalRankFusion(List<LinkedHashMap<Integer, Double>> rankings, int limit){
+        Map<Integer, Double> fused = new HashMap<>();
+        for (LinkedHashMap<Integer, Double> ranking : rankings) {
+            int rank = 1;
+            for (Integer docId : ranking.keySet()) {
+                fused.merge(docId, 1.0 / (RRF_K + rank), Double::sum);
+                rank++;
             }
         }
-        LinkedHashMap<Integer, Double> sortedSimilarities = new LinkedHashMap<>();
-        // Sort the docs in descending order
-        similarities.entrySet().stream()
-                .sorted((a, b) -> Double.compare(b.getValue(), a.getValue()))
-                .forEachOrdered(entry -> sortedSimilarities.put(entry.getKey(), entry.getValue()));
-        return sortedSimilarities;
+        ScoreHeap heap = new ScoreHeap(limit);
+        for (Map.Entry<Integer, Double> entry : fused.entrySet()) {
+            heap.offer(entry.getKey(), entry.getValue());
+        }
+        return heap.drainDescending();
     }
 
     /**
-     * Helper method to compute a single document vector with the query vector
-     * @param dv document vector
-     * @param qv query vector
-     * @return the Cosine Similarity between the vectors
+     * Print the report of a query and queue its results for the writer thread
+     * @param result the ranked results of the query
      */
-    public double cosineSimilarityHelper(Map<String, Double> dv, Map<String, Double> qv){
-        double dotProduct = 0.0;
-        // For later calculate the Euclidean length
-        double euclideanLength_query = 0.0;
-        double euclideanLength_document = 0.0;
+    public void emitResult(QueryResult result){
+        long start = QueryMetrics.start();
+        System.out.print(result.getReport());
+        // The whole block goes to the writer thread
+        resultSink.submit(result);
+        QueryMetrics.record(QueryMetrics.Stage.WRITE, start);
+        QueryMetrics.add(QueryMetrics.Counter.RESULTS_WRITTEN, result.size());
+    }
 
-        // Loop through the query vector to find the related fields
-        for(Map.Entry<String, Double> entry : qv.entrySet()){
-            String term = entry.getKey();
-            double query_ifidf = entry.getValue();
-            // If not in the dv, simply assign 0
-            double document_tfidf = dv.getOrDefault(term, 0.0);
-            dotProduct += query_ifidf * document_tfidf;
-            // Euclidean length (without square root) for query vector
-            euclideanLength_query += Math.pow(query_ifidf, 2);
+    /**
+     * Check the sorted similarities against the expected answer and write them to the results
+     * @param query the query tested
+     * @param similarities the sorted similarities of the query
+     * @param limit indicates how many results to be showed (descending order)
+     * @param ifClose false when running multiple queries together
+     */
+    private void reportResults(Querry query, LinkedHashMap<Integer, Double> similarities,
+                               int limit, boolean ifClose){
+        emitResult(evaluate(query, similarities, limit));
+        if(ifClose){
+            closeAll();
         }
+    }
 
-        // Euclidean length (without square root) for document vector
-        for(Map.Entry<String, Double> entry : dv.entrySet()){
-            double normalized_tfidf = entry.getValue();
-            euclideanLength_document += Math.pow(normalized_tfidf, 2);
-        }
+    /**
+     * Check the sorted similarities against the expected answer and collect the results to be written
+     * @param query the query tested
+     * @param similarities the sorted similarities of the query
+     * @param limit indicates how many results to be showed (descending order)
+     * @return the ranked results together with the console report
+     */
+    private QueryResult evaluate(Querry query, LinkedHashMap<Integer, Double> similarities, int limit){
+        return evaluate(query, rank(similarities, limit), limit);
+    }
 
-        // Euclidean length
-        double euclideanLength = Math.sqrt(euclideanLength_query)
-                                * Math.sqrt(euclideanLength_document);
+    /**
+     * Look up the corpus-id of the best hits
+     * @param similarities the sorted similarities of the query
+     * @param limit how many hits to keep
+     * @return the ranked hits
+     */
+    private QueryResultCache.Hits rank(LinkedHashMap<Integer, Double> similarities, int limit){
+        long start = QueryMetrics.start();
+        int size = Math.min(limit, similarities.size());
+        int[] docIds = new int[size];
+        String[] corpusIds = new String[size];
+        double[] scores = new double[size];
+        int position = 0;
+        ExternalIds ids = externalIds;
+        for (Map.Entry<Integer, Double> entry : similarities.entrySet()){
+            if(position >= limit) break;
 
-        // Cosine Similarity
-        return dotProduct / euclideanLength;
+            int docId = entry.getKey();
+            docIds[position] = docId;
+            corpusIds[position] = ids.get(docId);
+            scores[position] = entry.getValue();
+            position++;
+        }
+        QueryMetrics.record(QueryMetrics.Stage.EXTERNAL_IDS, start);
+        return new QueryResultCache.Hits(docIds, corpusIds, scores);
     }
 
     /**
-     * Perform the test on a single query from the corpus
-     * @param query the query to be tested
-     * @param dv document vector
+     * Check the ranked hits against the expected answer and collect the results to be written
+     * @param query the query tested
+     * @param hits the ranked hits of the query
      * @param limit indicates how many results to be showed (descending order)
-     * @param ifClose false when running multiple queries together
+     * @return the ranked results together with the console report
      */
-    public void runSingleQuery(Querry query, Map<Integer, Map<String, Double>> dv,
-                               int limit, String field, boolean ifClose){
-        // Build the qv for the current query
-        Map<String, Double> qv = buildQueryVector(query.getText(), field);
-        // Fetch the answer map from the csv file
-        Map<String, String> answerSet = fetchAnswer();
-        // Get the answer id for the current query
-        String answerID = answerSet.get(String.valueOf(query.getId()));
-        System.out.println("Answer ID: " + answerID);
-        // Fetch all the corpus
-        Map<String, String> answerMap = fetchCorpus();
+    private QueryResult evaluate(Querry query, QueryResultCache.Hits hits, int limit){
+        StringBuilder report = new StringBuilder();
+        report.append("Query: ").append(query.getText()).append('\n');
+        long start = QueryMetrics.start();
+        // Get the answer id for the current query from the preloaded qrels
+        String answerID = Qrels.shared().answer(String.valueOf(query.getId()));
+        report.append("Answer ID: ").append(answerID).append('\n');
         // Get the text from the answerID, this is the expected answer!
-        String answer = answerMap.get(answerID);
-        System.out.println("Answer: " + answer);
+        String answer = corpusCatalog().text(answerID);
+        report.append("Answer: ").append(answer).append('\n');
+        // The ids of the hits keep the quotes of the corpus file
+        String answerCorpusID = answer == null ? null : "\"" + answerID + "\"";
+        QueryMetrics.record(QueryMetrics.Stage.ANSWER_LOOKUP, start);
 
-        // A counter to limit how many results to be shown (work with the parameter limit)
-        int rank = 1;
         /*
          A counter to track the rank of the answer (if found),
          indicating the position of the answer in the sorted list displayed from highest to lowest similarity score.
          */
         int position = 0;
         boolean ifFound = false;
-        // Sorted similarities
-        LinkedHashMap<Integer, Double> similarities = computeCosineSimilarity(dv, qv);
-        for (Map.Entry<Integer, Double> entry : similarities.entrySet()){
-            if(rank > limit) break;
+        for (int i = 0; i < hits.size(); i++) {
+            if (answerCorpusID != null && answerCorpusID.equals(hits.corpusIds[i])){
+                report.append(hits.scores[i]).append(": ").append(answer).append('\n');
+                ifFound = true;
+            }
             position++;
+        }
+        if (position >= limit || position >= hits.size()){
+            report.append("Not found within the limit: ").append(limit).append('\n');
+        }else if (ifFound){
+            report.append("Found in position: ").append(position).append('\n');
+        }
+        String tag = "Keywords: " + query.getText().substring(0, 5).replace("\"", "") + "...";
+        return new QueryResult(query, hits.docIds, hits.corpusIds, hits.scores, tag, report.toString());
+    }
 
-            int docId = entry.getKey();
-            double similarity = entry.getValue();
-            try {
-                Document doc = indexReader.storedFields().document(docId);
-                String text = doc.get("text");
-                if (text.equals(answer)){
-                    System.out.println(similarity + ": " + text);
-                    ifFound = true;
-//                    System.out.println("Found!!!");
-//                    break;
+    /**
+     * The catalog of the corpus file, built on first use and shared by every query
+     * @return the corpus catalog
+     */
+    private CorpusCatalog corpusCatalog(){
+        CorpusCatalog catalog = corpusCatalog;
+        if (catalog == null){
+            synchronized (this){
+                catalog = corpusCatalog;
+                if (catalog == null){
+                    try {
+                        catalog = CorpusCatalog.open(corpusPath);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Unable to catalog the corpus", e);
+                    }
+                    corpusCatalog = catalog;
                 }
-                rank++;
-                int tmp = rank;
-                tmp--;
-                writeResult(Integer.toString(query.getId()), corpusList.get(text),
-                        tmp, similarity, "Keywords: " +
-                                query.getText().substring(0, 5).replace("\"", "") + "...");
-            } catch (IOException e) {
-                throw new RuntimeException("There's a low-level IO error");
             }
         }
-        if (position >= limit || position >= similarities.size()){
-            System.out.println("Not found within the limit: " + limit);
-        }else if (ifFound){
-            System.out.println("Found in position: " + position);
+        return catalog;
+    }
+
+    /**
+     * Method to run all the queries form the corpus
+     */
+    public void runQueriesOnField(String field){
+        runQueriesOnField(field, null);
+    }
+
+    /**
+     * Method to run all the queries form the corpus on a pool of threads.
+     * The document vector and the index reader are shared, the results are written in query order
+     * @param field the field to search
+     * @param executor the pool to run the queries on, null to run them one by one on this thread
+     */
+    public void runQueriesOnField(String field, QueryExecutor executor){
+        runQueriesOnField(field, null, executor);
+    }
+
+    /**
+     * Method to run all the queries form the corpus on an already built document vector
+     * @param field the field to search
+     * @param dv the document vector of the field, null to load or build it
+     * @param executor the pool to run the queries on, null to run them one by one on this thread
+     */
+    public void runQueriesOnField(String field, DocumentVectorStore dv, QueryExecutor executor){
+        try {
+            DocumentVectorStore store = dv != null ? dv : loadOrBuildDocumentStore(field);
+            if (batchSize > 1){
+                runQueryBatches(queries -> searchQueries(queries, store, 100, field), executor);
+            }else {
+                runQueries(query -> searchQuery(query, store, 100, field), executor);
+            }
+        }finally {
+            closeAll();
         }
-        if(ifClose){
+    }
+
+    /**
+     * Method to run all the queries form the corpus on several fields at once, see {@link MultiFieldIndex}
+     * @param fieldWeights the weight of each field
+     * @param executor the pool to run the queries on, null to run them one by one on this thread
+     */
+    public void runQueriesOnFields(LinkedHashMap<String, Double> fieldWeights, QueryExecutor executor){
+        try {
+            MultiFieldIndex index = buildMultiFieldIndex(fieldWeights);
+            runQueries(query -> searchQuery(query, index, 100), executor);
+        }finally {
             closeAll();
         }
     }
 
     /**
-     * Method to run all the queries form the corpus
+     * Method to run all the queries form the corpus on a sharded index, see {@link ShardedIndex}
+     * @param field the field to search
+     * @param executor the pool to run the queries on, null to run them one by one on this thread
      */
-    public void runQueriesOnField(String field){
+    public void runQueriesOnShards(String field, QueryExecutor executor){
+        try (ShardedIndex index = buildShardedIndex(field)) {
+            runQueries(query -> searchQuery(query, index, 100, field), executor);
+        }finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Run every query of queries.json, write the results in query order and report the time
+     * @param task searches one query
+     * @param executor the pool to run the queries on, null to run them one by one on this thread
+     */
+    private void runQueries(Function<Querry, QueryResult> task, QueryExecutor executor){
+        List<Querry> queries = readQueries();
+        long start = System.currentTimeMillis();
+        if (executor == null){
+            for (Querry query : queries) {
+                // Run each query in the queries.json
+                emitResult(task.apply(query));
+            }
+        }else {
+            executor.run(queries, task, this::emitResult);
+        }
+        finishQueries(start);
+    }
+
+    /**
+     * Run every query of queries.json in blocks of -Dvector.batch queries, see {@link #searchQueries};
+     * the results are still written in query order
+     * @param task searches one block of queries
+     * @param executor the pool to run the blocks on, null to run them one by one on this thread
+     */
+    private void runQueryBatches(Function<List<Querry>, List<QueryResult>> task, QueryExecutor executor){
+        List<Querry> queries = readQueries();
+        List<List<Querry>> batches = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i += batchSize) {
+            batches.add(queries.subList(i, Math.min(queries.size(), i + batchSize)));
+        }
+        long start = System.currentTimeMillis();
+        if (executor == null){
+            for (List<Querry> batch : batches) {
+                task.apply(batch).forEach(this::emitResult);
+            }
+        }else {
+            executor.run(batches, task, results -> results.forEach(this::emitResult));
+        }
+        finishQueries(start);
+    }
+
+    // Wait for the results to be written and report the run
+    private void finishQueries(long start){
+        try{
+            // Wait for the writer to empty its queue
+            resultSink.close();
+        }catch (IOException e){
+            System.out.println("Writer cannot write into files: " + e.getMessage());
+        }
+        long end = System.currentTimeMillis();
+        long totalTime = end - start;
+        System.out.println("Time used to write the results: " + totalTime / 1000 + " seconds");
+        if (resultCache != null){
+            System.out.println(resultCache.stats());
+        }
+        if (QueryMetrics.ENABLED){
+            QueryMetrics.dumpFromSystemProperties();
+        }
+    }
+
+    /**
+     * Read the queries to run from queries.json
+     * @return the queries, starting from the query with id = 1
+     */
+    public static List<Querry> readQueries(){
         // Prepare the reader to read queries.json
         try (BufferedReader bufferedReader = Files.newBufferedReader(Paths.get("src/main/java/queries.jsonl.json"))){
             ObjectMapper mapper = new ObjectMapper();
+            List<Querry> queries = new ArrayList<>();
             String line;
             // Locked if the reader not yet reach the query with id = 1
             boolean lock = false;
-            Map<Integer, Map<String, Double>> dv = buildDocumentVector(field);
-            long start = System.currentTimeMillis();
-            try{
-                writer.write("query_id\t" + "Q0\t" + "doc_id\t" + "rank\t" + "score\t" + "tag");
-                writer.newLine();
-            }catch (IOException e){
-                System.out.println("Writer cannot write into files");
-            }
             while((line = bufferedReader.readLine()) != null){
                 JsonNode jsonNode = mapper.readTree(line);
                 // Store the current id
                 int id = Integer.parseInt(
                         jsonNode.get("_id").toString().replace("\"", ""));
-                // Jump to the query with id = 1 and start from there 
+                // Jump to the query with id = 1 and start from there
                 if(id == 1 || lock) {
                     // Open the lock for the rest of the queries
                     lock = true;
                     // Construct the Querry object for later check the correct answer with the id
-                    Querry query = new Querry(id,
-                            jsonNode.get("text").toString());
-                    // Run each query in the queries.json
-                    runSingleQuery(query, dv, 100, field, false);
+                    queries.add(new Querry(id, jsonNode.get("text").toString()));
                 }
             }
-            long end = System.currentTimeMillis();
-            long totalTime = end - start;
-            System.out.println("Time used to write the results: " + totalTime / 1000 + " seconds");
+            return queries;
         } catch (IOException e) {
             throw new RuntimeException("Error to open buffered reader");
-        }finally {
-            closeAll();
         }
     }
 
@@ -389,7 +1689,7 @@ public class Vector {
     }
 
     /**
-     * Fetch the answer map from the CSV file
+     * Fetch the answer map from the CSV file, queries should use the preloaded {@link Qrels} instead
      * @return the answer map, key is the id, value is the corpus-id
      */
     public static Map<String, String> fetchAnswer(){
@@ -416,7 +1716,7 @@ public class Vector {
     }
 
     /**
-     * Fetch the corpus map
+     * Fetch the corpus map, queries should use the {@link CorpusCatalog} instead
      * @return the corpus map, key is the corpus-id and the value is the text field
      */
     public static Map<String, String> fetchCorpus(){
@@ -439,20 +1739,109 @@ public class Vector {
         }
     }
 
+    /**
+     * Queue a single row of the results, prefer {@link #emitResult} to hand over a whole query at once
+     */
     public void writeResult(String queryID, String docID, int rank, double score, String runName){
-        try{
-            writer.write(queryID + "\t" + "Q0\t" + docID + "\t" + rank+"\t" + score + "\t" + runName + "\n");
-        }catch (IOException e){
-            System.out.println("Something wrong with the writer");
+        resultSink.submit(queryID, new String[]{docID}, new double[]{score}, runName, rank);
+    }
+
+    /**
+     * Choose how the similarities are computed
+     * @param termAtATime true to only walk the postings of the query terms (default),
+     *                    false to score every document vector
+     */
+    public void setTermAtATime(boolean termAtATime){
+        this.termAtATime = termAtATime;
+    }
+
+    /**
+     * Score every document on quantized weights instead of the float store (a full scan, no postings)
+     * @param quantization the encoding of the weights, null to score the float store (default)
+     */
+    public void setQuantization(QuantizedVectorStore.Encoding quantization){
+        this.quantization = quantization;
+    }
+
+    /**
+     * Score the queries of runQueriesOnField in blocks sharing the postings of their common terms
+     * @param batchSize how many queries to score together, 1 to score them one by one (default)
+     */
+    public void setBatchSize(int batchSize){
+        if (batchSize < 1){
+            throw new IllegalArgumentException("batch size must be at least 1: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Statically prune the document vectors returned by {@link #loadOrBuildDocumentStore}
+     * @param staticPruning which postings to keep, null to keep every posting (default)
+     */
+    public void setStaticPruning(StaticPruning staticPruning){
+        this.staticPruning = staticPruning;
+    }
+
+    /**
+     * Pruning pays off when the posting lists are long compared to k; on small corpora where most query terms
+     * can still reach the top k, the exhaustive term-at-a-time loop is faster
+     * @param pruning true to skip the documents that cannot enter the top k (MaxScore),
+     *                false to fully score every document matching a query term (default); both give the same ranking
+     */
+    public void setPruning(boolean pruning){
+        this.pruning = pruning;
+    }
+
+    /**
+     * Retrieve with both the tf-idf cosine and the HNSW kNN search, merged by reciprocal rank fusion.
+     * The index must have been built with document embeddings (see Indexer#setEmbeddings).
+     * The embeddings are closed by closeAll()
+     * @param queryEmbeddings the query embeddings keyed by query id, null for tf-idf only
+     */
+    public void setQueryEmbeddings(EmbeddingMatrix queryEmbeddings){
+        this.queryEmbeddings = queryEmbeddings;
+        if (queryEmbeddings != null && knnExecutor == null){
+            knnExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        }
+    }
+
+    /**
+     * Configure the optional stages from the system properties:
+     * -Dvector.knn.queries (hybrid retrieval, see {@link #setQueryEmbeddings})
+     * and -Dvector.rerank.* (see {@link DenseReranker})
+     * @throws IOException if an embedding file cannot be mapped
+     */
+    public void configureFromSystemProperties() throws IOException {
+        String knnQueries = System.getProperty("vector.knn.queries");
+        if (knnQueries != null){
+            setQueryEmbeddings(EmbeddingMatrix.open(Paths.get(knnQueries)));
         }
+        setReranker(DenseReranker.fromSystemProperties());
+    }
+
+    /**
+     * Re-rank the top results of every query by dense similarity, the re-ranker is closed by closeAll()
+     * @param reranker the re-ranker, null to keep the tf-idf ranking
+     */
+    public void setReranker(DenseReranker reranker){
+        this.reranker = reranker;
     }
 
     /**
      * Delete all the indices under the directory
      */
     public static void deleteIndices(){
-        Path directory = Paths.get("src/main/java/org/example/indices");
+        deleteIndices(Paths.get("src/main/java/org/example/indices"));
+    }
 
+    /**
+     * Delete the files of the indices under a directory, e.g. every shard of a sharded index
+     * @param directory the directory to empty
+     */
+    public static void deleteIndices(Path directory){
+        if (!Files.exists(directory)){
+            return;
+        }
         try (Stream<Path> paths = Files.walk(directory)) {
             // Delete files
             paths.filter(Files::isRegularFile)
@@ -480,6 +1869,31 @@ public class Vector {
             throw new RuntimeException("Unable to close indexReader", e);
         }
 
+        try {
+            if (this.corpusCatalog != null){
+                this.corpusCatalog.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to close corpus catalog", e);
+        }
+
+        try {
+            if (this.reranker != null){
+                this.reranker.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to close re-ranker", e);
+        }
+
+        try {
+            if (this.queryEmbeddings != null){
+                this.knnExecutor.shutdown();
+                this.queryEmbeddings.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to close query embeddings", e);
+        }
+
         try {
             this.analyzer.close();
         } catch (Exception e) {
@@ -487,7 +1901,9 @@ public class Vector {
         }
 
         try {
-            this.writer.close();
+            if (this.resultSink != null){
+                this.resultSink.close();
+            }
         } catch (IOException e) {
             throw new RuntimeException("Unable to close writer", e);
         }
@@ -496,16 +1912,149 @@ public class Vector {
     public static void main(String[] args) throws IOException{
         /*
         To run the code:
+        0. If the index and the persisted document vectors are still current, reuse them and skip 1-3
+           (run with "update <delta.jsonl>" to add or replace documents in the existing index instead,
+           or with "profiles" to compare the size and build time of -Dindexer.profile=full|lean,
+           or with "serve" to answer queries over HTTP from a warm index, see SearchServer,
+           or with "quantized" to compare int8/float16 document weights with the float ones,
+           or with "pruning [top:N,min:W,budget:B,...]" to compare static prunings with the full vectors)
         1. Delete the previous stored indices (that means you can rerun this main() many times)
         2. Instantiate the indexer and construct the index first: indexer.index();
+           (merged into one sorted segment, the same doc ids on every build; -Dindexer.merge=false skips the merge)
         3. Build the vector with indexer's analyzer
         4.
            To run all the queries from the queries.json, run the runQueries() directly
+           (in parallel, see QueryExecutor for -Dvector.pool and -Dvector.threads)
+        5. Optionally re-rank the top results by dense similarity, see DenseReranker for -Dvector.rerank.*
+           (run with --add-modules jdk.incubator.vector for the SIMD dot products)
+        6. Optionally retrieve with tf-idf and HNSW kNN together: index with -Dindexer.embeddings=corpus.emb
+           and run with -Dvector.knn.queries=queries.emb
+        7. Optionally score several fields at once with a weighted cosine, e.g. -Dvector.fields=title:0.3,text:0.7
+        8. Optionally shard the index, e.g. -Dindexer.shards=4: every shard is searched in parallel
+        9. Optionally score every document on quantized weights, -Dvector.quantized=int8|float16
+           (run with --add-modules jdk.incubator.vector for the SIMD int8 kernel)
+        10. Optionally drop the low-weight postings of the document vectors, e.g. -Dvector.prune=top:50
+        11. Optionally score the queries in blocks sharing their postings traversal, e.g. -Dvector.batch=32
          */
+        String field = "combined";
+        String fieldsSpec = System.getProperty("vector.fields");
+        LinkedHashMap<String, Double> fieldWeights = fieldsSpec == null ? null : MultiFieldIndex.parseFields(fieldsSpec);
+        // Compare the build time and the size of the index profiles, without touching the index
+        if (args.length == 1 && args[0].equals("profiles")){
+            Indexer.compareProfiles(Paths.get("src/main/java/corpus.jsonl.json"),
+                    Integer.getInteger("indexer.threads", Runtime.getRuntime().availableProcessors()));
+            return;
+        }
+        // Service mode: keep the index and the document vectors warm and answer queries over HTTP
+        if (args.length == 1 && args[0].equals("serve")){
+            Path indexPath = Paths.get("src/main/java/org/example/indices");
+            boolean indexed;
+            try (Directory directory = FSDirectory.open(indexPath)) {
+                indexed = DirectoryReader.indexExists(directory);
+            }
+            if (!indexed){
+                deleteIndices();
+                new Indexer().indexFromSystemProperties();
+            }
+            SearchServer server = SearchServer.fromSystemProperties(indexPath,
+                    Paths.get("src/main/java/corpus.jsonl.json"), field);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            System.out.println("Listening on http://localhost:" + server.getPort() + " (/search?q=, /batch, /reload, /metrics)");
+            return;
+        }
+        // Compare the quantized encodings of the document vectors with the float ones, on the current index
+        if (args.length == 1 && args[0].equals("quantized")){
+            Vector vector = new Vector(Indexer.createAnalyzer(), Paths.get("src/main/java/org/example/indices"),
+                    Paths.get("src/main/java/corpus.jsonl.json"), null);
+            // The comparison needs the float weights
+            vector.setQuantization(null);
+            try {
+                vector.compareQuantized(vector.loadOrBuildDocumentStore(field), 100);
+            } finally {
+                vector.closeAll();
+            }
+            return;
+        }
+        // Trade-off curve of the static pruning: memory, speed and ranking against the unpruned vectors
+        if (args.length >= 1 && args[0].equals("pruning")){
+            Vector vector = new Vector(Indexer.createAnalyzer(), Paths.get("src/main/java/org/example/indices"),
+                    Paths.get("src/main/java/corpus.jsonl.json"), null);
+            vector.setStaticPruning(null);
+            try {
+                vector.comparePruning(vector.loadOrBuildDocumentStore(field), StaticPruning.parseAll(args.length > 1
+                        ? args[1] : "top:200,top:100,top:50,top:25,min:0.02,min:0.05,budget:0.75,budget:0.5,budget:0.25"), 100);
+            } finally {
+                vector.closeAll();
+            }
+            return;
+        }
+        // Sharded mode: hash-partition the corpus across -Dindexer.shards indices and search them all in parallel
+        int shards = ShardedIndex.shardsFromSystemProperties();
+        if (shards > 1){
+            Path base = Paths.get("src/main/java/org/example/shards");
+            deleteIndices(base);
+            List<Path> shardPaths = ShardedIndex.shardPaths(base, shards);
+            Indexer indexer = new Indexer(Paths.get("src/main/java/corpus.jsonl.json"), shardPaths);
+            indexer.indexFromSystemProperties();
+            IndexReader[] readers = new IndexReader[shards];
+            for (int i = 0; i < shards; i++) {
+                readers[i] = DirectoryReader.open(FSDirectory.open(shardPaths.get(i)));
+            }
+            // The MultiReader numbers the documents shard after shard and sums their statistics
+            Vector vector = new Vector(indexer.getAnalyzer(), new MultiReader(readers),
+                    Paths.get("src/main/java/corpus.jsonl.json"), Paths.get("src/main/java/results.csv"));
+            vector.configureFromSystemProperties();
+            try (QueryExecutor executor = QueryExecutor.fromSystemProperties()) {
+                vector.runQueriesOnShards(field, executor);
+            }
+            return;
+        }
+        // Incremental mode: update the existing index from a delta file instead of rebuilding it
+        if (args.length == 2 && args[0].equals("update")){
+            Vector vector = new Vector(Indexer.createAnalyzer());
+            vector.configureFromSystemProperties();
+            DocumentVectorStore store = vector.loadOrBuildDocumentStore(field);
+            try (IndexUpdater updater = new IndexUpdater()) {
+                updater.apply(Paths.get(args[1]));
+                store = vector.refresh(updater, store);
+                updater.commit();
+            }
+            try (QueryExecutor executor = QueryExecutor.fromSystemProperties()) {
+                vector.runQueriesOnField(field, store, executor);
+            }
+            return;
+        }
+        // Warm start: the index and its document vector snapshot are still current, skip the rebuild
+        boolean warmStart;
+        try (Directory directory = FSDirectory.open(Paths.get("src/main/java/org/example/indices"))) {
+            warmStart = VectorSnapshot.isCurrent(directory,
+                    fieldWeights == null ? field : fieldWeights.keySet().iterator().next());
+        }
+        if (warmStart){
+            Vector vector = new Vector(Indexer.createAnalyzer());
+            vector.configureFromSystemProperties();
+            try (QueryExecutor executor = QueryExecutor.fromSystemProperties()) {
+                runQueries(vector, field, fieldWeights, executor);
+            }
+            return;
+        }
         deleteIndices();
         Indexer indexer = new Indexer();
-        Map<String, String> list = indexer.index();
-        Vector vector = new Vector(indexer.getAnalyzer(), list);
-        vector.runQueriesOnField("combined");
+        indexer.indexFromSystemProperties();
+        Vector vector = new Vector(indexer.getAnalyzer());
+        vector.configureFromSystemProperties();
+        try (QueryExecutor executor = QueryExecutor.fromSystemProperties()) {
+            runQueries(vector, field, fieldWeights, executor);
+        }
+    }
+
+    // Single-field run, or multi-field when -Dvector.fields is set
+    private static void runQueries(Vector vector, String field, LinkedHashMap<String, Double> fieldWeights,
+                                   QueryExecutor executor){
+        if (fieldWeights == null){
+            vector.runQueriesOnField(field, executor);
+        }else {
+            vector.runQueriesOnFields(fieldWeights, executor);
+        }
     }
 }
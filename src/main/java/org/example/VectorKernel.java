@@ -0,0 +1,94 @@
+package org.example;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels on the incubating Vector API. Only loaded when the jdk.incubator.vector module
+ * is present, see {@link DenseReranker} and {@link QuantizedVectorStore}.
+ */
+final class VectorKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // The int8 weights widen lane for lane to the preferred float shape, so the byte shape is a quarter of its size.
+    // Shapes the hardware does not have run in the slow Java fallback of the Vector API: with less than 8 float
+    // lanes (128-bit NEON or SSE) there is no byte shape to load from (the smallest is 64 bits) and dotInt8 is off
+    private static final VectorSpecies<Float> WIDENED = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = WIDENED.length() >= 8
+            ? ByteVector.SPECIES_64.withShape(VectorShape.forBitSize(WIDENED.vectorBitSize() / 4))
+            : null;
+
+    private VectorKernel(){
+    }
+
+    /**
+     * @param a first vector
+     * @param b second vector
+     * @param n dimension of the vectors
+     * @return the Cosine Similarity between the vectors, 0 if one of them is all zeros
+     */
+    static double cosine(float[] a, float[] b, int n){
+        FloatVector dot = FloatVector.zero(SPECIES);
+        FloatVector normA = FloatVector.zero(SPECIES);
+        FloatVector normB = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, i);
+            dot = va.fma(vb, dot);
+            normA = va.fma(va, normA);
+            normB = vb.fma(vb, normB);
+        }
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        double na = normA.reduceLanes(VectorOperators.ADD);
+        double nb = normB.reduceLanes(VectorOperators.ADD);
+        // Tail
+        for (; i < n; i++) {
+            d += a[i] * b[i];
+            na += a[i] * a[i];
+            nb += b[i] * b[i];
+        }
+        return na == 0.0 || nb == 0.0 ? 0.0 : d / Math.sqrt(na * nb);
+    }
+
+    /**
+     * @return true if {@link #dotInt8} runs on shapes the hardware has, use a scalar loop otherwise
+     */
+    static boolean hasInt8(){
+        return BYTES != null;
+    }
+
+    /**
+     * Dot product of a dense query with a sparse row of int8 weights: the query weights of the row's
+     * term ids are gathered a vector at a time and multiplied with the widened weights.
+     * Only call when {@link #hasInt8()}
+     * @param query the query weights, indexed by term id
+     * @param termIds the term id of every posting
+     * @param weights the int8 weight of every posting
+     * @param from first posting of the row
+     * @param to end (exclusive) of the row
+     * @return the dot product, in units of the row's int8 scale
+     */
+    static double dotInt8(float[] query, int[] termIds, byte[] weights, int from, int to){
+        FloatVector dot = FloatVector.zero(WIDENED);
+        int bound = from + WIDENED.loopBound(to - from);
+        int i = from;
+        for (; i < bound; i += WIDENED.length()) {
+            FloatVector q = FloatVector.fromArray(WIDENED, query, 0, termIds, i);
+            FloatVector w = (FloatVector) ByteVector.fromArray(BYTES, weights, i)
+                    .convertShape(VectorOperators.B2F, WIDENED, 0);
+            dot = q.fma(w, dot);
+        }
+        float d = dot.reduceLanes(VectorOperators.ADD);
+        // Tail
+        for (; i < to; i++) {
+            d += query[termIds[i]] * weights[i];
+        }
+        return d;
+    }
+}
@@ -0,0 +1,269 @@
+package org.example;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Versioned binary snapshot of a {@link DocumentVectorStore}, written next to the index.
+ * The snapshot remembers the commit of the Lucene index it was built from (generation and
+ * the unique commit id), so a warm start can memory-map it instead of rebuilding the vectors.
+ *
+ * Layout (big-endian):
+ *   magic, version, generation, commit id, field, maxDoc, number of terms,
+ *   terms (length + UTF-8 bytes), offsets[maxDoc + 1], termIds[size], weights[size], lengths[maxDoc]
+ */
+public class VectorSnapshot {
+
+    private static final int MAGIC = 0x56454353; // "VECS"
+
+    // Bump whenever the layout changes, older snapshots are then rebuilt
+    private static final int VERSION = 1;
+
+    private static final String DIRECTORY = "src/main/java/org/example";
+
+    // Mapped for the header, the commit id and the field name are far smaller
+    private static final int HEADER_SIZE = 4096;
+
+    // A single mapping is limited to 2 GB, the sections are copied a gigabyte at a time
+    private static final int MAX_MAPPING = 1 << 30;
+
+    /**
+     * @param field the field the vectors were built on
+     * @return the snapshot file of the field, next to the indices directory
+     */
+    public static Path pathFor(String field){
+        return Paths.get(DIRECTORY, "vectors-" + field + ".bin");
+    }
+
+    /**
+     * Write the store to the snapshot file of its field, tagged with the reader's commit
+     * @param store the store to persist
+     * @param indexReader the reader the store was built from
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static void write(DocumentVectorStore store, DirectoryReader indexReader) throws IOException {
+        write(store, indexReader, pathFor(store.getField()));
+    }
+
+    public static void write(DocumentVectorStore store, DirectoryReader indexReader, Path path) throws IOException {
+        store.requireWeights();
+        IndexCommit commit = indexReader.getIndexCommit();
+        byte[] commitId = commitId(commit);
+        // Write to a temporary file first, so a crash never leaves a half written snapshot behind
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(commit.getGeneration());
+            out.writeInt(commitId.length);
+            out.write(commitId);
+            byte[] field = store.getField().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(field.length);
+            out.write(field);
+            int maxDoc = store.maxDoc();
+            out.writeInt(maxDoc);
+
+            TermDictionary dictionary = store.getDictionary();
+            out.writeInt(dictionary.size());
+            BytesRef scratch = new BytesRef();
+            for (int id = 0; id < dictionary.size(); id++) {
+                BytesRef term = dictionary.termBytes(id, scratch);
+                out.writeInt(term.length);
+                out.write(term.bytes, term.offset, term.length);
+            }
+            for (int docId = 0; docId <= maxDoc; docId++) {
+                out.writeInt(docId < maxDoc ? store.start(docId) : store.size());
+            }
+            for (int i = 0; i < store.size(); i++) {
+                out.writeInt(store.termId(i));
+            }
+            for (int i = 0; i < store.size(); i++) {
+                out.writeFloat(store.weight(i));
+            }
+            for (int docId = 0; docId < maxDoc; docId++) {
+                out.writeFloat(store.length(docId));
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the snapshot of a field if it was built from the reader's commit
+     * The sections are copied from the mapping into heap arrays, the inverted index and the SIMD kernels
+     * need them there; the dictionary is re-hashed term by term
+     * @param indexReader the reader currently open
+     * @param field the field to load
+     * @return the store, or null if there is no snapshot or it is stale
+     * @throws IOException if the snapshot cannot be read, or is truncated or corrupt
+     */
+    public static DocumentVectorStore load(DirectoryReader indexReader, String field) throws IOException {
+        return load(indexReader, field, pathFor(field));
+    }
+
+    public static DocumentVectorStore load(DirectoryReader indexReader, String field, Path path) throws IOException {
+        if (!Files.exists(path)){
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The fixed part of the header fits in its first block
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE));
+            if (!matches(header, indexReader.getIndexCommit(), field, path)){
+                return null;
+            }
+            if (header.remaining() < 8){
+                throw new IOException("Truncated vector snapshot: " + path);
+            }
+            int maxDoc = header.getInt();
+            int numTerms = header.getInt();
+            long position = header.position();
+            // Every term takes at least its length, the offsets and the lengths at least 8 bytes per document
+            if (maxDoc < 0 || numTerms < 0 || (maxDoc + 1L) * 8 + numTerms * 4L > channel.size() - position){
+                throw new IOException("Corrupt vector snapshot: " + path + ", " + maxDoc + " documents and "
+                        + numTerms + " terms");
+            }
+
+            // The terms section has no size limit, stream it into a fresh dictionary, the ids keep their order
+            TermDictionary dictionary = new TermDictionary();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(position)), 1 << 16));
+            BytesRef scratch = new BytesRef(new byte[64]);
+            for (int id = 0; id < numTerms; id++) {
+                int length = in.readInt();
+                if (length < 0 || length > channel.size() - position - 4){
+                    throw new IOException("Corrupt term " + id + " in vector snapshot: " + path);
+                }
+                if (scratch.bytes.length < length){
+                    scratch.bytes = new byte[length];
+                }
+                in.readFully(scratch.bytes, 0, length);
+                scratch.length = length;
+                dictionary.add(scratch);
+                position += 4L + length;
+            }
+
+            // The scoring structures work on heap arrays, every section is copied from mappings of at most 1 GB
+            int[] offsets = new int[maxDoc + 1];
+            position = readInts(channel, position, offsets);
+            int size = offsets[maxDoc];
+            // The term ids and the weights take 8 bytes per posting, the lengths 4 per document
+            if (size < 0 || size * 8L + maxDoc * 4L > channel.size() - position){
+                throw new IOException("Truncated vector snapshot: " + path + ", " + size + " postings");
+            }
+            for (int docId = 0; docId < maxDoc; docId++) {
+                if (offsets[docId] < 0 || offsets[docId] > offsets[docId + 1]){
+                    throw new IOException("Corrupt offset of document " + docId + " in vector snapshot: " + path);
+                }
+            }
+            int[] termIds = new int[size];
+            position = readInts(channel, position, termIds);
+            for (int i = 0; i < size; i++) {
+                if (termIds[i] < 0 || termIds[i] >= numTerms){
+                    throw new IOException("Corrupt term id " + termIds[i] + " in vector snapshot: " + path);
+                }
+            }
+            float[] weights = new float[size];
+            position = readFloats(channel, position, weights);
+            float[] lengths = new float[maxDoc];
+            readFloats(channel, position, lengths);
+
+            return new DocumentVectorStore(field, dictionary, offsets, termIds, weights, lengths);
+        }
+    }
+
+    /**
+     * Check only the header of the snapshot against the latest commit of the index
+     * @param directory the index directory
+     * @param field the field of the snapshot
+     * @return true if the snapshot exists and was built from the latest commit
+     */
+    public static boolean isCurrent(Directory directory, String field){
+        Path path = pathFor(field);
+        if (!Files.exists(path)){
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             DirectoryReader reader = DirectoryReader.open(directory)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE));
+            return matches(header, reader.getIndexCommit(), field, path);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    // Read the header and compare it with the commit, leaves the buffer right after the field name
+    private static boolean matches(ByteBuffer header, IndexCommit commit, String field, Path path) throws IOException {
+        if (header.remaining() < 8 || header.getInt() != MAGIC || header.getInt() != VERSION){
+            return false;
+        }
+        if (header.remaining() < 8){
+            throw new IOException("Truncated vector snapshot: " + path);
+        }
+        long generation = header.getLong();
+        byte[] commitId = new byte[headerLength(header, path)];
+        header.get(commitId);
+        byte[] storedField = new byte[headerLength(header, path)];
+        header.get(storedField);
+        return generation == commit.getGeneration()
+                && Arrays.equals(commitId, commitId(commit))
+                && field.equals(new String(storedField, StandardCharsets.UTF_8));
+    }
+
+    // Read the length of a header section and check that the section fits in the header
+    private static int headerLength(ByteBuffer header, Path path) throws IOException {
+        if (header.remaining() < 4){
+            throw new IOException("Truncated vector snapshot: " + path);
+        }
+        int length = header.getInt();
+        if (length < 0 || length > header.remaining()){
+            throw new IOException("Corrupt vector snapshot header: " + path + ", section of " + length + " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * The generation alone is not enough: a deleted and rebuilt index starts over at generation 1.
+     * The commit id is random per commit, so it tells the rebuilds apart.
+     */
+    private static byte[] commitId(IndexCommit commit) throws IOException {
+        byte[] id = SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName()).getId();
+        return id == null ? new byte[0] : id;
+    }
+
+    // Copy a section of ints, mapping at most MAX_MAPPING bytes at a time; returns the position after the section
+    private static long readInts(FileChannel channel, long position, int[] values) throws IOException {
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, MAX_MAPPING / 4);
+            map(channel, position, n * 4L).asIntBuffer().get(values, i, n);
+            position += n * 4L;
+            i += n;
+        }
+        return position;
+    }
+
+    private static long readFloats(FileChannel channel, long position, float[] values) throws IOException {
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, MAX_MAPPING / 4);
+            map(channel, position, n * 4L).asFloatBuffer().get(values, i, n);
+            position += n * 4L;
+            i += n;
+        }
+        return position;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+}